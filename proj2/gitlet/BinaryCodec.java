@@ -0,0 +1,237 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** Commit、tree 和 StagingArea 的二进制编码，取代 Java 序列化。
+ *  编码是规范的（canonical）：同样内容的 commit 永远编码成同样的字节，commit 的 id 就是它的 SHA-1。
+ *
+ *  commit（版本 1）：
+ *      byte 版本号 | long 时间戳（毫秒）| str 提交信息
+ *      | byte 父节点个数 | 父节点 SHA-1（各 20 字节）
+ *      | int 文件个数 | (str 文件名 | 20 字节 blob SHA-1)...  文件按文件名升序排列
+ *
+ *  commit（版本 2，引用根 tree，见 Tree）：
+ *      byte 版本号 | long 时间戳（毫秒）| str 提交信息
+ *      | byte 父节点个数 | 父节点 SHA-1（各 20 字节）| 20 字节根 tree SHA-1
+ *
+ *  tree（版本 1）：
+ *      byte 版本号 | int 项数 | (byte 类型 | str 名字 | 20 字节 SHA-1)...  按名字升序排列
+ *      类型为 TYPE_BLOB（文件）或 TYPE_TREE（子目录）；解码后子目录的名字以 / 结尾
+ *
+ *  暂存区（版本 1）：
+ *      "GSTG" | byte 版本号 | int 待添加个数 | (str 文件名 | 20 字节 blob SHA-1)...
+ *      | int 待删除个数 | str 文件名...
+ *
+ *  str 为 int 字节数 + UTF-8 字节。
+ *
+ *  @author Lucius
+ */
+class BinaryCodec {
+    /** commit 编码版本：直接列出所有文件 */
+    static final byte COMMIT_VERSION = 1;
+    /** commit 编码版本：引用根 tree */
+    static final byte COMMIT_TREE_VERSION = 2;
+    /** tree 编码版本 */
+    static final byte TREE_VERSION = 1;
+    /** 暂存区文件魔数 */
+    private static final int STAGING_MAGIC = 0x47535447; // "GSTG"
+    /** 暂存区编码版本 */
+    static final byte STAGING_VERSION = 1;
+    /** SHA-1 原始字节长度 */
+    private static final int ID_BYTES = UID_LENGTH / 2;
+
+    /** 将 COMMIT 编码为字节；有根 tree 的 commit 用版本 2，只写 tree 的 hash */
+    static byte[] encodeCommit(Commit commit) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(commit.getTree() != null ? COMMIT_TREE_VERSION : COMMIT_VERSION);
+            out.writeLong(commit.getTimeStamp().getTime());
+            writeString(out, commit.getMessage());
+            out.writeByte(commit.getParents().size());
+            for (String parent : commit.getParents()) {
+                out.write(uidToBytes(parent));
+            }
+            if (commit.getTree() != null) {
+                out.write(uidToBytes(commit.getTree()));
+            } else {
+                writeFileMap(out, new TreeMap<>(commit.getTrackedFiles()));
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw error("Internal error serializing commit.");
+        }
+    }
+
+    /** 从 BYTES 解码出 Commit。
+     *  版本 2 的 commit 只带根 tree 的 hash，跟踪文件为 null，由调用者从 tree 展开 */
+    static Commit decodeCommit(byte[] bytes) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            byte version = in.get();
+            if (version != COMMIT_VERSION && version != COMMIT_TREE_VERSION) {
+                throw error("Unsupported commit format version %d.", version);
+            }
+            Date timeStamp = new Date(in.getLong());
+            String message = readString(in);
+            int parentCount = in.get();
+            List<String> parents = new ArrayList<>(parentCount);
+            for (int i = 0; i < parentCount; i += 1) {
+                parents.add(readId(in));
+            }
+            if (version == COMMIT_TREE_VERSION) {
+                return new Commit(message, parents, null, timeStamp, readId(in));
+            }
+            Map<String, String> trackedFiles = readFileMap(in);
+            return new Commit(message, parents, trackedFiles, timeStamp);
+        } catch (BufferUnderflowException excp) {
+            throw error("Corrupt commit object.");
+        }
+    }
+
+    /** 将 tree 的目录项 ENTRIES（名字 -> SHA-1，子目录名字以 / 结尾）编码为字节 */
+    static byte[] encodeTree(Map<String, String> entries) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(TREE_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, String> entry : new TreeMap<>(entries).entrySet()) {
+                String name = entry.getKey();
+                boolean isDir = name.endsWith("/");
+                out.writeByte(isDir ? ObjectStore.TYPE_TREE : ObjectStore.TYPE_BLOB);
+                writeString(out, isDir ? name.substring(0, name.length() - 1) : name);
+                out.write(uidToBytes(entry.getValue()));
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw error("Internal error serializing tree.");
+        }
+    }
+
+    /** 从 BYTES 解码出 tree 的目录项（按名字升序，子目录名字以 / 结尾） */
+    static TreeMap<String, String> decodeTree(byte[] bytes) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            byte version = in.get();
+            if (version != TREE_VERSION) {
+                throw error("Unsupported tree format version %d.", version);
+            }
+            int count = in.getInt();
+            TreeMap<String, String> entries = new TreeMap<>();
+            for (int i = 0; i < count; i += 1) {
+                byte type = in.get();
+                String name = readString(in);
+                entries.put(type == ObjectStore.TYPE_TREE ? name + "/" : name, readId(in));
+            }
+            return entries;
+        } catch (BufferUnderflowException excp) {
+            throw error("Corrupt tree object.");
+        }
+    }
+
+    /** 将暂存区 STAGINGAREA 编码为字节 */
+    static byte[] encodeStagingArea(StagingArea stagingArea) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(STAGING_MAGIC);
+            out.writeByte(STAGING_VERSION);
+            writeFileMap(out, new TreeMap<>(stagingArea.getFieldToAdd()));
+            List<String> removed = new ArrayList<>(stagingArea.getFieldToRemove().keySet());
+            removed.sort(null);
+            out.writeInt(removed.size());
+            for (String fileName : removed) {
+                writeString(out, fileName);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw error("Internal error serializing staging area.");
+        }
+    }
+
+    /** 从 BYTES 解码出暂存区 */
+    static StagingArea decodeStagingArea(byte[] bytes) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            if (in.getInt() != STAGING_MAGIC || in.get() != STAGING_VERSION) {
+                throw error("Unsupported staging area format.");
+            }
+            StagingArea stagingArea = new StagingArea();
+            for (Map.Entry<String, String> entry : readFileMap(in).entrySet()) {
+                stagingArea.add(entry.getKey(), entry.getValue());
+            }
+            int removeCount = in.getInt();
+            for (int i = 0; i < removeCount; i += 1) {
+                stagingArea.remove(readString(in));
+            }
+            return stagingArea;
+        } catch (BufferUnderflowException excp) {
+            throw error("Corrupt staging area.");
+        }
+    }
+
+    /** 写出 文件名 -> blob hash 映射，FILES 的迭代顺序即写出顺序 */
+    private static void writeFileMap(DataOutputStream out, Map<String, String> files) throws IOException {
+        out.writeInt(files.size());
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            writeString(out, entry.getKey());
+            out.write(uidToBytes(entry.getValue()));
+        }
+    }
+
+    /** 读取 文件名 -> blob hash 映射 */
+    private static Map<String, String> readFileMap(ByteBuffer in) {
+        int count = in.getInt();
+        Map<String, String> files = new HashMap<>();
+        for (int i = 0; i < count; i += 1) {
+            String fileName = readString(in);
+            files.put(fileName, readId(in));
+        }
+        return files;
+    }
+
+    /** 写出长度前缀的 UTF-8 字符串 */
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** 读取长度前缀的 UTF-8 字符串，直接从底层数组解码，不额外拷贝 */
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String result = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return result;
+    }
+
+    /** 读取 20 字节 SHA-1 */
+    private static String readId(ByteBuffer in) {
+        if (in.remaining() < ID_BYTES) {
+            throw new BufferUnderflowException();
+        }
+        String id = bytesToUid(in.array(), in.position());
+        in.position(in.position() + ID_BYTES);
+        return id;
+    }
+}
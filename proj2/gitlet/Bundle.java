@@ -0,0 +1,327 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/** bundle 文件：把分支的完整历史放进单个文件，用于在互相访问不到磁盘的机器之间传输，或者备份仓库。
+ *
+ *  文件格式：
+ *      "GBDL" | int 版本号 | int 引用个数 | 引用...（UTF 分支名 + 20 字节 commit SHA-1）
+ *      | Deflate 压缩的对象流：每个对象为 byte 类型 + 20 字节 SHA-1 + 对象内容，以类型 0 结束
+ *      对象内容分段写出：每段为 int 长度（1 到 SEGMENT_SIZE）+ 内容，以长度 0 结束
+ *      （版本 1 的对象内容为 int 长度 + 内容，仍然可以读入）
+ *  对象按 blob、tree、commit（父 commit 在前）的顺序排列，读到某个对象时它引用的对象都已经读过；
+ *  分块存储的 blob 写出拼接后的完整内容，不单独写出各块。
+ *
+ *  写出和读入都是一次顺序的流，内存占用与对象大小无关：create 用 ObjectStore.streamBlob 把 blob 直接写进压缩流，
+ *  写出前不需要知道对象长度；unbundle 边解压边校验 SHA-1，本地没有的对象直接追加进一个新 pack
+ *  （见 PackFile.Writer），不经过逐个对象的 loose 文件，大 blob 按本地的 chunk 配置重新切块（见 ObjectStore.addBlob）。
+ *  分段长度在读入时检查，不会按文件里的长度预先分配内存。
+ *  读完后检查每个新 commit 的父 commit、tree、blob 和每个新 tree 的目录项都在 bundle 或本地仓库中，
+ *  否则整个 bundle 作废，不留下任何对象。
+ *
+ *  @author Lucius
+ */
+class Bundle {
+    /** bundle 文件魔数 */
+    private static final int MAGIC = 0x4742444c; // "GBDL"
+    /** 当前格式版本 */
+    private static final int VERSION = 2;
+    /** 对象内容为 int 长度 + 内容的旧版本 */
+    private static final int VERSION_SIZED = 1;
+    /** 对象流结束标记 */
+    private static final int END = 0;
+    /** 对象内容每段的最大长度 */
+    private static final int SEGMENT_SIZE = 64 << 10;
+
+    private Bundle() {
+    }
+
+    /** 把 STORE 中分支 BRANCHNAME（最新 commit 为 HEAD）的完整历史写到 FILE，对象按 LEVEL 压缩，
+     *  返回写出的对象个数 */
+    static int write(File file, String branchName, String head, ObjectStore store, int level) {
+        List<String> ids = RemoteSync.missingObjects(store, head, id -> false, false, new ArrayList<>());
+        Deflater deflater = new Deflater(level);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), STREAM_BUFFER_SIZE))) {
+            //1.引用
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(1);
+            out.writeUTF(branchName);
+            out.write(uidToBytes(head));
+
+            //2.对象流，整体压缩，相似的对象之间也能共享压缩字典
+            DeflaterOutputStream compressed = new DeflaterOutputStream(out, deflater, STREAM_BUFFER_SIZE);
+            DataOutputStream objects = new DataOutputStream(compressed);
+            for (String id : ids) {
+                byte type = store.typeOf(id);
+                objects.writeByte(type);
+                objects.write(uidToBytes(id));
+                SegmentOutputStream content = new SegmentOutputStream(objects);
+                if (type == ObjectStore.TYPE_BLOB) {
+                    store.streamBlob(id, content);
+                } else {
+                    content.write(store.read(id, type));
+                }
+                content.finish();
+            }
+            objects.writeByte(END);
+            objects.flush();
+            compressed.finish();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            deflater.end();
+        }
+        return ids.size();
+    }
+
+    /** 读取 bundle 文件 FILE，把 STORE 中还没有的对象写进一个新 pack，
+     *  本地没有的 commit 按父 commit 在前的顺序放进 NEWCOMMITS，返回其中的引用（分支名 -> commit） */
+    static Map<String, String> read(File file, ObjectStore store, List<String> newCommits) {
+        Map<String, String> refs = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), STREAM_BUFFER_SIZE));
+             PackFile.Writer pack = store.newPack()) {
+            //1.引用
+            if (in.readInt() != MAGIC) {
+                throw error("Not a gitlet bundle.");
+            }
+            int version = in.readInt();
+            if (version != VERSION && version != VERSION_SIZED) {
+                throw error("Not a gitlet bundle.");
+            }
+            int refCount = in.readInt();
+            if (refCount < 0) {
+                throw error("Corrupt bundle.");
+            }
+            for (int i = 0; i < refCount; i += 1) {
+                String name = in.readUTF();
+                refs.put(name, readUid(in));
+            }
+
+            //2.对象流，校验每个对象的 SHA-1；记下新对象引用的对象，最后检查是否齐全
+            DataInputStream objects = new DataInputStream(new InflaterInputStream(in));
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            Set<String> received = new HashSet<>();
+            Set<String> referenced = new HashSet<>();
+            for (byte type = objects.readByte(); type != END; type = objects.readByte()) {
+                if (type != ObjectStore.TYPE_COMMIT && type != ObjectStore.TYPE_TREE
+                        && type != ObjectStore.TYPE_BLOB) {
+                    throw error("Corrupt bundle.");
+                }
+                String id = readUid(objects);
+                md.reset();
+                InputStream content = new DigestInputStream(version == VERSION_SIZED
+                        ? SegmentInputStream.sized(objects) : new SegmentInputStream(objects), md);
+                if (store.contains(id) || pack.contains(id)) {
+                    content.transferTo(OutputStream.nullOutputStream());
+                } else if (type == ObjectStore.TYPE_BLOB) {
+                    store.addBlob(pack, id, content);
+                } else {
+                    byte[] bytes = content.readAllBytes();
+                    pack.add(id, type, bytes);
+                    addReferences(type, bytes, referenced);
+                    if (type == ObjectStore.TYPE_COMMIT) {
+                        newCommits.add(id);
+                    }
+                }
+                //分段流读到结束标记才算读完，下一个对象从那之后开始
+                content.transferTo(OutputStream.nullOutputStream());
+                if (!bytesToUid(md.digest(), 0).equals(id)) {
+                    throw error("Corrupt bundle: object %s does not match its hash.", id);
+                }
+                received.add(id);
+            }
+
+            //3.新对象引用的对象、引用的 commit 都必须在 bundle 或本地仓库中
+            referenced.addAll(refs.values());
+            for (String id : referenced) {
+                if (!received.contains(id) && !store.contains(id)) {
+                    throw error("Corrupt bundle: missing object %s.", id);
+                }
+            }
+            pack.finish();
+        } catch (EOFException excp) {
+            throw error("Bundle is truncated.");
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+        store.refresh();
+        return refs;
+    }
+
+    /** 把类型为 TYPE、内容为 BYTES 的 commit 或 tree 引用的对象放进 REFERENCED */
+    private static void addReferences(byte type, byte[] bytes, Set<String> referenced) {
+        try {
+            if (type == ObjectStore.TYPE_TREE) {
+                referenced.addAll(BinaryCodec.decodeTree(bytes).values());
+                return;
+            }
+            Commit commit = BinaryCodec.decodeCommit(bytes);
+            referenced.addAll(commit.getParents());
+            if (commit.getTree() != null) {
+                referenced.add(commit.getTree());
+            } else {
+                referenced.addAll(commit.getTrackedFiles().values());
+            }
+        } catch (RuntimeException excp) {
+            throw error("Corrupt bundle: cannot decode object.");
+        }
+    }
+
+    /** 从 IN 读取 20 字节 SHA-1 */
+    private static String readUid(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[UID_LENGTH / 2];
+        in.readFully(bytes);
+        return bytesToUid(bytes, 0);
+    }
+
+    /** 把写入的内容按 SEGMENT_SIZE 分段写到底层流，finish 时写出结束标记（不关闭底层流） */
+    private static class SegmentOutputStream extends OutputStream {
+        /** 底层流 */
+        private final DataOutputStream out;
+        /** 当前段的内容 */
+        private final byte[] buf = new byte[SEGMENT_SIZE];
+        /** 当前段已有的字节数 */
+        private int count;
+
+        SegmentOutputStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buf.length) {
+                flushSegment();
+            }
+            buf[count] = (byte) b;
+            count += 1;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buf.length) {
+                    flushSegment();
+                }
+                int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /** 写出剩下的内容和结束标记 */
+        void finish() throws IOException {
+            flushSegment();
+            out.writeInt(0);
+        }
+
+        /** 把当前段写出 */
+        private void flushSegment() throws IOException {
+            if (count > 0) {
+                out.writeInt(count);
+                out.write(buf, 0, count);
+                count = 0;
+            }
+        }
+    }
+
+    /** 读取 SegmentOutputStream 写出的分段内容，读到结束标记时结束（不关闭底层流）；
+     *  段长度不在 1 到 SEGMENT_SIZE 之间时报告 bundle 损坏 */
+    private static class SegmentInputStream extends InputStream {
+        /** 底层流 */
+        private final DataInputStream in;
+        /** 当前段还没读的字节数 */
+        private long remaining;
+        /** 当前段是否为最后一段 */
+        private boolean last;
+
+        SegmentInputStream(DataInputStream in) {
+            this.in = in;
+        }
+
+        /** 版本 1 的对象内容：int 长度 + 内容，当作只有一段 */
+        static SegmentInputStream sized(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                throw error("Corrupt bundle.");
+            }
+            SegmentInputStream result = new SegmentInputStream(in);
+            result.remaining = length;
+            result.last = true;
+            return result;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextSegment()) {
+                return -1;
+            }
+            remaining -= 1;
+            return in.readUnsignedByte();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextSegment()) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException();
+            }
+            remaining -= n;
+            return n;
+        }
+
+        /** 当前段读完时读入下一段的长度，没有更多内容时返回 false */
+        private boolean nextSegment() throws IOException {
+            while (remaining == 0) {
+                if (last) {
+                    return false;
+                }
+                int length = in.readInt();
+                if (length == 0) {
+                    last = true;
+                } else if (length < 0 || length > SEGMENT_SIZE) {
+                    throw error("Corrupt bundle.");
+                } else {
+                    remaining = length;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/** 按内容切块（FastCDC）：块边界只由边界前几十个字节的内容决定，
+ *  文件中间插入或删除一段后，改动之外的块边界不变，这些块可以在版本之间、文件之间共享。
+ *
+ *  每读一个字节更新 Gear 滚动哈希 h = (h << 1) + GEAR[b]，h 的高位只取决于最近 64 个字节；
+ *  块长至少为 min，在到达平均长度之前用位数更多的掩码（更难切），之后用位数更少的掩码（更容易切），
+ *  块长因此集中在平均长度附近（FastCDC 的归一化切块），最长不超过 max。
+ *  GEAR 表由固定种子生成，同样的内容在任何机器上都切出同样的块。
+ *
+ *  @author Lucius
+ */
+class Chunker {
+    /** Gear 表的种子，改了会让已有的块全部无法复用 */
+    private static final long GEAR_SEED = 0x6769746c6574L; // "gitlet"
+
+    /** 每个字节值对应的随机 64 位数 */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(GEAR_SEED);
+        for (int i = 0; i < GEAR.length; i += 1) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /** 接收切出的块 */
+    interface ChunkConsumer {
+        /** 块的内容为 BUF 的前 LENGTH 个字节（BUF 之后会被复用） */
+        void accept(byte[] buf, int length) throws IOException;
+    }
+
+    /** 最短块长 */
+    private final int minSize;
+    /** 平均块长 */
+    private final int avgSize;
+    /** 最长块长 */
+    private final int maxSize;
+    /** 到达平均块长之前使用的掩码 */
+    private final long maskSmall;
+    /** 到达平均块长之后使用的掩码 */
+    private final long maskLarge;
+
+    /** 平均块长约为 AVGSIZE（向下取到 2 的幂）的切块器 */
+    Chunker(int avgSize) {
+        int bits = 31 - Integer.numberOfLeadingZeros(Math.max(avgSize, 256));
+        this.avgSize = 1 << bits;
+        this.minSize = this.avgSize / 4;
+        this.maxSize = this.avgSize * 8;
+        this.maskSmall = highBits(bits + 1);
+        this.maskLarge = highBits(bits - 1);
+    }
+
+    /** 把 IN 的剩余内容切块，依次交给 CONSUMER（不关闭 IN） */
+    void split(InputStream in, ChunkConsumer consumer) throws IOException {
+        byte[] buf = new byte[maxSize];
+        int filled = 0;
+        boolean eof = false;
+        while (true) {
+            //1.尽量填满缓冲区
+            while (!eof && filled < buf.length) {
+                int n = in.read(buf, filled, buf.length - filled);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    filled += n;
+                }
+            }
+            if (filled == 0) {
+                return;
+            }
+
+            //2.切下一块，剩下的移到缓冲区开头
+            int cut = cutPoint(buf, filled);
+            consumer.accept(buf, cut);
+            System.arraycopy(buf, cut, buf, 0, filled - cut);
+            filled -= cut;
+        }
+    }
+
+    /** BUF 前 LENGTH 个字节中第一块的长度 */
+    private int cutPoint(byte[] buf, int length) {
+        if (length <= minSize) {
+            return length;
+        }
+        int normal = Math.min(avgSize, length);
+        long h = 0;
+        int i = minSize;
+        for (; i < normal; i += 1) {
+            h = (h << 1) + GEAR[buf[i] & 0xff];
+            if ((h & maskSmall) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < length; i += 1) {
+            h = (h << 1) + GEAR[buf[i] & 0xff];
+            if ((h & maskLarge) == 0) {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+
+    /** 最高 N 位为 1 的掩码 */
+    private static long highBits(int n) {
+        return n <= 0 ? 0 : -1L << (64 - n);
+    }
+}
@@ -10,6 +10,9 @@ import java.util.*;
  *  @author Lucius
  */
 public class Commit implements Serializable {
+    /** 固定为最初版本的值，升级旧仓库时仍能用Java反序列化读出旧commit（见RepositoryUpgrade） */
+    private static final long serialVersionUID = 554895261099816823L;
+
     /**
      *
      * List all instance variables of the Commit class here with a useful
@@ -32,12 +35,23 @@ public class Commit implements Serializable {
      *  */
     private final Map<String, String> trackedFiles;
 
+    /** 根tree的哈希值，跟踪的文件按目录存放在tree对象里（见Tree）；
+     *  旧版本直接列出文件的commit为null */
+    private final String tree;
+
     /** commit的构造函数*/
     public Commit(String message, List<String> parents, Map<String, String> trackedFiles, Date timeStamp) {
+        this(message, parents, trackedFiles, timeStamp, null);
+    }
+
+    /** 引用根tree TREE的commit的构造函数，TRACKEDFILES为tree展开后的文件 */
+    public Commit(String message, List<String> parents, Map<String, String> trackedFiles, Date timeStamp,
+                  String tree) {
         this.message = message;
         this.parents = parents;
         this.trackedFiles = trackedFiles;
         this.timeStamp = timeStamp;
+        this.tree = tree;
     }
 
     /** commit的无参构造 */
@@ -46,6 +60,7 @@ public class Commit implements Serializable {
         this.parents = new ArrayList<>();
         this.trackedFiles = new HashMap<String, String>();
         this.timeStamp = new Date();
+        this.tree = null;
     }
 
 
@@ -62,5 +77,8 @@ public class Commit implements Serializable {
     public Map<String, String> getTrackedFiles() {
         return trackedFiles;
     }
+    public String getTree() {
+        return tree;
+    }
 
 }
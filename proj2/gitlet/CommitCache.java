@@ -0,0 +1,71 @@
+package gitlet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** 已解析 commit 的 LRU 缓存，按 commit 个数限制大小。
+ *  commit 对象创建后不再修改，同一条命令（以及 daemon 里的后续命令）反复读取
+ *  同一个 commit 时直接复用，不必再读对象文件、再反序列化。
+ *  记录命中、未命中和淘汰次数，调试模式下由 Repository 输出。
+ *
+ *  @author Lucius
+ */
+class CommitCache {
+    /** 最多缓存的 commit 个数 */
+    private final int capacity;
+    /** commit hash -> commit，按访问顺序排列，最久未用的在最前面 */
+    private final LinkedHashMap<String, Commit> entries;
+    /** 命中次数 */
+    private long hits;
+    /** 未命中次数 */
+    private long misses;
+    /** 淘汰次数 */
+    private long evictions;
+
+    CommitCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Commit> eldest) {
+                if (size() > CommitCache.this.capacity) {
+                    evictions += 1;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /** 返回缓存的 commit HASH，没有时返回 null */
+    Commit get(String hash) {
+        Commit commit = entries.get(hash);
+        if (commit == null) {
+            misses += 1;
+        } else {
+            hits += 1;
+        }
+        return commit;
+    }
+
+    /** 缓存 commit HASH，容量为 0 时不缓存 */
+    void put(String hash, Commit commit) {
+        if (capacity > 0) {
+            entries.put(hash, commit);
+        }
+    }
+
+    /** 清空缓存（统计数据保留） */
+    void clear() {
+        entries.clear();
+    }
+
+    /** 统计信息，例如 commit cache: 120 hits, 8 misses, 0 evictions, 8/4096 entries；之后计数清零 */
+    String takeStats() {
+        String stats = "commit cache: " + hits + " hits, " + misses + " misses, " + evictions
+                + " evictions, " + entries.size() + "/" + capacity + " entries";
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        return stats;
+    }
+}
@@ -0,0 +1,254 @@
+package gitlet;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static gitlet.Utils.*;
+
+/** commit-graph 缓存文件，保存所有 commit 的父子关系和 generation number，
+ *  merge 找分叉点、祖先判断、log 遍历时都不需要再反序列化 Commit 对象。
+ *
+ *  文件格式（只追加）：
+ *      "GCGR" | int 版本号 | 记录...
+ *      每条记录定长 40 字节：20 字节 SHA-1 | int generation | int 第一个父节点下标
+ *      | int 第二个父节点下标 | long 时间戳（毫秒）
+ *      父节点下标指向之前的记录，没有父节点时为 -1；父节点一定先于子节点写入。
+ *
+ *  generation(c) = 1 + max(generation(父节点))，initial commit 为 1。
+ *  若 a 是 b 的祖先，则 generation(a) < generation(b)，据此可以剪枝。
+ *
+ *  @author Lucius
+ */
+class CommitGraph {
+    /** 文件魔数 */
+    private static final int MAGIC = 0x47434752; // "GCGR"
+    /** 格式版本 */
+    private static final int VERSION = 1;
+    /** 文件头长度 */
+    private static final int HEADER = 8;
+    /** 每条记录的长度 */
+    private static final int RECORD = UID_LENGTH / 2 + 3 * 4 + 8;
+    /** 没有父节点 */
+    private static final int NONE = -1;
+
+    /** commit-graph 文件 */
+    private final File file;
+    /** 下标 -> commit id */
+    private final List<String> ids = new ArrayList<>();
+    /** commit id -> 下标 */
+    private final Map<String, Integer> indexes = new HashMap<>();
+    /** 下标 -> generation */
+    private int[] generations = new int[16];
+    /** 下标 -> 父节点下标 */
+    private int[] parent1 = new int[16];
+    private int[] parent2 = new int[16];
+    /** 下标 -> 时间戳 */
+    private long[] timeStamps = new long[16];
+    /** 文件头损坏，下次追加前要先清空文件 */
+    private boolean corrupt;
+
+    private CommitGraph(File file) {
+        this.file = file;
+    }
+
+    /** 读取 FILE 中的 commit-graph，文件不存在或损坏时返回空图（之后会按需补齐）。
+     *  损坏的文件在这里不动（只读命令不持有写锁），等第一次 add 时再清空重写 */
+    static CommitGraph load(File file) {
+        CommitGraph graph = new CommitGraph(file);
+        if (!file.isFile()) {
+            return graph;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(readContents(file));
+        if (buf.remaining() < HEADER || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            graph.corrupt = true;
+            return graph;
+        }
+        byte[] raw = new byte[UID_LENGTH / 2];
+        while (buf.remaining() >= RECORD) {
+            buf.get(raw);
+            int generation = buf.getInt();
+            int p1 = buf.getInt();
+            int p2 = buf.getInt();
+            long timeStamp = buf.getLong();
+            graph.append(bytesToUid(raw, 0), generation, p1, p2, timeStamp);
+        }
+        return graph;
+    }
+
+    /** commit 个数 */
+    int size() {
+        return ids.size();
+    }
+
+    /** 判断 ID 是否已在图中 */
+    boolean contains(String id) {
+        return indexes.containsKey(id);
+    }
+
+    /** ID 的 generation number */
+    int generation(String id) {
+        return generations[index(id)];
+    }
+
+    /** ID 的时间戳（毫秒） */
+    long timeStamp(String id) {
+        return timeStamps[index(id)];
+    }
+
+    /** ID 的第一个父 commit，没有则返回 null */
+    String firstParent(String id) {
+        int p = parent1[index(id)];
+        return p == NONE ? null : ids.get(p);
+    }
+
+    /** ID 的所有父 commit */
+    List<String> parents(String id) {
+        int i = index(id);
+        List<String> result = new ArrayList<>(2);
+        if (parent1[i] != NONE) {
+            result.add(ids.get(parent1[i]));
+        }
+        if (parent2[i] != NONE) {
+            result.add(ids.get(parent2[i]));
+        }
+        return result;
+    }
+
+    /** 把 commit ID（父节点为 PARENTS，时间为 TIMESTAMP）加入图并追加写入文件，调用者必须持有仓库写锁。
+     *  PARENTS 必须已经在图中；ID 已存在时什么也不做。 */
+    void add(String id, List<String> parents, long timeStamp) {
+        if (contains(id)) {
+            return;
+        }
+        int p1 = parents.size() > 0 ? index(parents.get(0)) : NONE;
+        int p2 = parents.size() > 1 ? index(parents.get(1)) : NONE;
+        int generation = 1;
+        if (p1 != NONE) {
+            generation = Math.max(generation, generations[p1] + 1);
+        }
+        if (p2 != NONE) {
+            generation = Math.max(generation, generations[p2] + 1);
+        }
+        append(id, generation, p1, p2, timeStamp);
+
+        try (FileOutputStream stream = new FileOutputStream(file, true)) {
+            if (corrupt) {
+                stream.getChannel().truncate(0);
+                corrupt = false;
+            }
+            //上次追加时崩溃可能留下不完整的记录，先截掉，否则之后的记录都会错位
+            boolean fresh = truncateTorn(stream.getChannel(), HEADER, RECORD);
+            try (DataOutputStream out = new DataOutputStream(stream)) {
+                if (fresh) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                }
+                out.write(uidToBytes(id));
+                out.writeInt(generation);
+                out.writeInt(p1);
+                out.writeInt(p2);
+                out.writeLong(timeStamp);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** 返回 A 和 B 的最近公共祖先（generation 最大的公共祖先），没有则返回 null。
+     *  按 generation 从大到小出队：一个节点出队时它的所有子节点都已出队，
+     *  所以它的标记已经完整，第一个同时带有两种标记的节点就是答案。 */
+    String mergeBase(String a, String b) {
+        int[] flags = new int[size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<>(
+            (x, y) -> generations[y] != generations[x]
+                      ? Integer.compare(generations[y], generations[x])
+                      : Integer.compare(y, x));
+        int ia = index(a);
+        int ib = index(b);
+        flags[ia] |= 1;
+        flags[ib] |= 2;
+        queue.add(ia);
+        if (ib != ia) {
+            queue.add(ib);
+        }
+        while (!queue.isEmpty()) {
+            int i = queue.poll();
+            if (flags[i] == 3) {
+                return ids.get(i);
+            }
+            for (int p : new int[] {parent1[i], parent2[i]}) {
+                if (p != NONE && (flags[p] & flags[i]) != flags[i]) {
+                    if (flags[p] == 0) {
+                        queue.add(p);
+                    }
+                    flags[p] |= flags[i];
+                }
+            }
+        }
+        return null;
+    }
+
+    /** 判断 ANCESTOR 是否为 DESCENDANT 的祖先（或就是它本身），
+     *  generation 不大于 ANCESTOR 的分支直接剪掉。 */
+    boolean isAncestor(String ancestor, String descendant) {
+        int target = index(ancestor);
+        int minGeneration = generations[target];
+        boolean[] seen = new boolean[size()];
+        ArrayDeque<Integer> stack = new ArrayDeque<>();
+        stack.push(index(descendant));
+        while (!stack.isEmpty()) {
+            int i = stack.pop();
+            if (i == target) {
+                return true;
+            }
+            if (seen[i] || generations[i] <= minGeneration) {
+                continue;
+            }
+            seen[i] = true;
+            if (parent1[i] != NONE) {
+                stack.push(parent1[i]);
+            }
+            if (parent2[i] != NONE) {
+                stack.push(parent2[i]);
+            }
+        }
+        return false;
+    }
+
+    /** ID 的下标，不在图中时报错 */
+    private int index(String id) {
+        Integer i = indexes.get(id);
+        if (i == null) {
+            throw error("Commit %s is missing from the commit-graph.", id);
+        }
+        return i;
+    }
+
+    /** 在内存中追加一条记录 */
+    private void append(String id, int generation, int p1, int p2, long timeStamp) {
+        int i = ids.size();
+        if (i == generations.length) {
+            int n = 2 * i;
+            generations = Arrays.copyOf(generations, n);
+            parent1 = Arrays.copyOf(parent1, n);
+            parent2 = Arrays.copyOf(parent2, n);
+            timeStamps = Arrays.copyOf(timeStamps, n);
+        }
+        ids.add(id);
+        indexes.put(id, i);
+        generations[i] = generation;
+        parent1[i] = p1;
+        parent2[i] = p2;
+        timeStamps[i] = timeStamp;
+    }
+}
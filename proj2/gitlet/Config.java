@@ -0,0 +1,68 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/** 仓库配置，保存在 .gitlet/config（java.util.Properties 格式，key=value）。
+ *  同名的系统属性 -Dgitlet.<key>=<value> 优先于配置文件，方便临时覆盖。
+ *
+ *  @author Lucius
+ */
+class Config {
+    /** 系统属性前缀 */
+    private static final String PROPERTY_PREFIX = "gitlet.";
+
+    /** 从配置文件读出的配置 */
+    private final Properties properties = new Properties();
+
+    private Config() {
+    }
+
+    /** 读取配置文件 FILE，文件不存在时所有 key 都取默认值 */
+    static Config load(File file) {
+        Config config = new Config();
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                config.properties.load(in);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return config;
+    }
+
+    /** 返回 KEY 的值，没有配置时返回 DEFAULTVALUE */
+    String get(String key, String defaultValue) {
+        String value = System.getProperty(PROPERTY_PREFIX + key);
+        if (value == null) {
+            value = properties.getProperty(key);
+        }
+        return value == null ? defaultValue : value.trim();
+    }
+
+    /** 返回整数 KEY 的值，没有配置或格式不对时返回 DEFAULTVALUE */
+    int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(get(key, Integer.toString(defaultValue)));
+        } catch (NumberFormatException excp) {
+            return defaultValue;
+        }
+    }
+
+    /** 返回长整数 KEY 的值，没有配置或格式不对时返回 DEFAULTVALUE */
+    long getLong(String key, long defaultValue) {
+        try {
+            return Long.parseLong(get(key, Long.toString(defaultValue)));
+        } catch (NumberFormatException excp) {
+            return defaultValue;
+        }
+    }
+
+    /** 返回布尔 KEY 的值，没有配置时返回 DEFAULTVALUE */
+    boolean getBoolean(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(get(key, Boolean.toString(defaultValue)));
+    }
+}
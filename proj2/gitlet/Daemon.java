@@ -0,0 +1,186 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/** daemon 命令：常驻进程，在同一个 JVM 里反复执行命令，省掉每条命令启动 JVM、
+ *  重新读取暂存区和解析 commit 的开销。
+ *
+ *  只监听 127.0.0.1，实际端口写入 .gitlet/daemon.port。本机的其他用户也能连上这个端口，
+ *  所以启动时生成一个随机口令，写入只有属主可读写的 .gitlet/daemon.token，口令文件先于端口文件写出。协议（UTF-8）：
+ *      连接后的第一行：口令，不一致（或 AUTH_TIMEOUT_MS 内没有发来）时直接断开，不执行任何命令
+ *      请求：一行一条命令，参数之间用制表符分隔，
+ *            参数中的反斜杠、制表符、换行分别写成 \\、\t、\n
+ *      响应：十进制输出长度 + 换行，然后是命令原本会打印到标准输出的内容
+ *      请求 shutdown 时回复空响应并退出 daemon
+ *  一个连接里可以连续发送任意多条命令，连接按顺序逐个处理。
+ *
+ *  commit、暂存区、commit-graph 等缓存在 Repository 中；每条命令执行前比较 .gitlet/version，
+ *  其他进程修改过仓库时丢弃全部缓存；命令出错时也丢弃，避免留下改了一半的暂存区。
+ *  分支文件很小并且到处直接写入，仍然每次从磁盘读取；config 只在启动时读取一次。
+ *
+ *  @author Lucius
+ */
+class Daemon {
+    /** 结束 daemon 的请求 */
+    private static final String SHUTDOWN = "shutdown";
+    /** 口令的随机字节数，按十六进制写出 */
+    private static final int TOKEN_BYTES = UID_LENGTH / 2;
+    /** 等待客户端发送口令的最长时间（毫秒） */
+    private static final int AUTH_TIMEOUT_MS = 5000;
+
+    private Daemon() {
+    }
+
+    /** 在 PORT（0 表示由系统分配）上提供服务，口令写入 TOKENFILE，实际端口写入 PORTFILE，收到 shutdown 后返回 */
+    static void serve(int port, File portFile, File tokenFile) {
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            byte[] token = writeToken(tokenFile);
+            writeContents(portFile, Integer.toString(server.getLocalPort()));
+            System.out.println("Listening on 127.0.0.1:" + server.getLocalPort());
+            boolean running = true;
+            while (running) {
+                try (Socket socket = server.accept()) {
+                    running = handle(socket, token);
+                } catch (IOException excp) {
+                    //单个连接出错（例如客户端中途断开）不影响 daemon
+                }
+            }
+        } catch (IOException excp) {
+            throw new GitletException("Cannot start daemon: " + excp.getMessage());
+        } finally {
+            portFile.delete();
+            tokenFile.delete();
+        }
+    }
+
+    /** 生成随机口令，写入新建的 FILE（权限 0600，文件系统不支持 POSIX 权限时退而只对属主开放），返回口令 */
+    private static byte[] writeToken(File file) throws IOException {
+        byte[] random = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(random);
+        byte[] token = bytesToUid(random, 0).getBytes(StandardCharsets.UTF_8);
+        Path path = file.toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(
+                    EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+        } catch (UnsupportedOperationException excp) {
+            Files.createFile(path);
+            file.setReadable(false, false);
+            file.setWritable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(true, true);
+        }
+        Files.write(path, token);
+        return token;
+    }
+
+    /** 处理一个连接上的所有请求，第一行口令与 TOKEN 不一致时直接返回；收到 shutdown 时返回 false */
+    private static boolean handle(Socket socket, byte[] token) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        socket.setSoTimeout(AUTH_TIMEOUT_MS);
+        String given = readLine(in);
+        if (given == null || !MessageDigest.isEqual(token, given.getBytes(StandardCharsets.UTF_8))) {
+            return true;
+        }
+        socket.setSoTimeout(0);
+        String line;
+        while ((line = readLine(in)) != null) {
+            if (line.equals(SHUTDOWN)) {
+                respond(out, new byte[0]);
+                return false;
+            }
+            respond(out, execute(parse(line)));
+        }
+        return true;
+    }
+
+    /** 执行一条命令，返回它打印到标准输出的内容 */
+    private static byte[] execute(String[] args) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(buffer, true));
+        try {
+            if (args.length > 0 && args[0].equals("daemon")) {
+                throw new GitletException("A daemon is already running.");
+            }
+            Repository.refreshCaches();
+            Main.run(args);
+        } catch (RuntimeException excp) {
+            //GitletException 的消息与单次运行时的输出一致；其他异常也只报告消息，daemon 继续运行
+            System.out.println(excp.getMessage());
+            Repository.resetCaches();
+        } finally {
+            System.out.flush();
+            System.setOut(stdout);
+        }
+        return buffer.toByteArray();
+    }
+
+    /** 写出一条响应：长度行 + 内容 */
+    private static void respond(OutputStream out, byte[] output) throws IOException {
+        out.write((output.length + "\n").getBytes(StandardCharsets.UTF_8));
+        out.write(output);
+        out.flush();
+    }
+
+    /** 读取一行（不含换行，兼容 \r\n），连接关闭时返回 null */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            }
+            line.write(b);
+        }
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /** 把一行请求拆成参数并还原转义字符；空行表示没有参数 */
+    private static String[] parse(String line) {
+        if (line.isEmpty()) {
+            return new String[0];
+        }
+        List<String> args = new ArrayList<>();
+        StringBuilder arg = new StringBuilder();
+        for (int i = 0; i < line.length(); i += 1) {
+            char c = line.charAt(i);
+            if (c == '\t') {
+                args.add(arg.toString());
+                arg.setLength(0);
+            } else if (c == '\\' && i + 1 < line.length()) {
+                i += 1;
+                char next = line.charAt(i);
+                arg.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                arg.append(c);
+            }
+        }
+        args.add(arg.toString());
+        return args.toArray(new String[0]);
+    }
+}
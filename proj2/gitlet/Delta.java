@@ -0,0 +1,199 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static gitlet.Utils.*;
+
+/** 两个版本之间的 copy/insert 差量编码，repack 用它把 blob 存成“基础对象 + 差量”。
+ *
+ *  差量格式：
+ *      varint 基础对象长度 | varint 结果长度 | 指令...
+ *      指令首字节为 0：copy，后跟 varint 偏移量、varint 长度，从基础对象复制一段
+ *      指令首字节为 1..127：insert，后跟这么多字节的字面内容
+ *
+ *  生成时把基础对象按 BLOCK 字节对齐切块建哈希表，再用滚动哈希扫描目标，
+ *  命中后向前、向后尽量延长匹配，时间与两者长度之和成正比。
+ *
+ *  @author Lucius
+ */
+class Delta {
+    /** 匹配块大小，短于它的公共片段不值得用 copy 表示 */
+    private static final int BLOCK = 16;
+    /** 单条 insert 指令的最大字面长度 */
+    private static final int MAX_INSERT = 127;
+    /** 指令：copy */
+    private static final int OP_COPY = 0;
+    /** 滚动哈希的乘数 */
+    private static final int PRIME = 31;
+    /** 每个哈希值最多记录的基础块个数，避免重复内容使扫描退化 */
+    private static final int MAX_CHAIN = 64;
+
+    private Delta() {
+    }
+
+    /** 生成把 BASE 变成 TARGET 的差量 */
+    static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(target.length / 4 + 16);
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        //1.基础对象按块建索引：hash -> 块起点链表（head/next 数组，避免装箱）
+        int blocks = base.length / BLOCK;
+        int tableSize = Integer.highestOneBit(Math.max(blocks, 1) * 2);
+        int[] head = new int[tableSize];
+        Arrays.fill(head, -1);
+        int[] next = new int[blocks];
+        int[] chain = new int[tableSize];
+        for (int b = blocks - 1; b >= 0; b -= 1) {
+            int slot = blockHash(base, b * BLOCK) & (tableSize - 1);
+            if (chain[slot] < MAX_CHAIN) {
+                next[b] = head[slot];
+                head[slot] = b;
+                chain[slot] += 1;
+            }
+        }
+
+        //2.用滚动哈希扫描目标
+        int pow = 1;
+        for (int k = 1; k < BLOCK; k += 1) {
+            pow *= PRIME;
+        }
+        int insertStart = 0;
+        int pos = 0;
+        int hash = target.length >= BLOCK ? blockHash(target, 0) : 0;
+        while (pos + BLOCK <= target.length) {
+            int bestStart = -1;
+            int bestLength = 0;
+            int bestBack = 0;
+            if (blocks > 0) {
+                for (int b = head[hash & (tableSize - 1)]; b >= 0; b = next[b]) {
+                    int start = b * BLOCK;
+                    int length = matchForward(base, start, target, pos);
+                    if (length < BLOCK) {
+                        continue;
+                    }
+                    int back = matchBackward(base, start, target, pos, insertStart);
+                    if (length + back > bestLength + bestBack) {
+                        bestStart = start;
+                        bestLength = length;
+                        bestBack = back;
+                    }
+                }
+            }
+            if (bestStart < 0) {
+                if (pos + BLOCK < target.length) {
+                    hash = (hash - target[pos] * pow) * PRIME + target[pos + BLOCK];
+                }
+                pos += 1;
+                continue;
+            }
+            writeInsert(out, target, insertStart, pos - bestBack);
+            writeCopy(out, bestStart - bestBack, bestBack + bestLength);
+            pos += bestLength;
+            insertStart = pos;
+            if (pos + BLOCK <= target.length) {
+                hash = blockHash(target, pos);
+            }
+        }
+        writeInsert(out, target, insertStart, target.length);
+        return out.toByteArray();
+    }
+
+    /** 把差量 DELTA 应用到 BASE 上，返回结果 */
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = {0};
+        if (readVarint(delta, pos) != base.length) {
+            throw error("Delta does not match its base object.");
+        }
+        byte[] result = new byte[Math.toIntExact(readVarint(delta, pos))];
+        int written = 0;
+        while (pos[0] < delta.length) {
+            int op = delta[pos[0]++];
+            if (op == OP_COPY) {
+                int offset = Math.toIntExact(readVarint(delta, pos));
+                int length = Math.toIntExact(readVarint(delta, pos));
+                System.arraycopy(base, offset, result, written, length);
+                written += length;
+            } else {
+                System.arraycopy(delta, pos[0], result, written, op);
+                pos[0] += op;
+                written += op;
+            }
+        }
+        if (written != result.length) {
+            throw error("Corrupt delta.");
+        }
+        return result;
+    }
+
+    /** 从 START 开始 BLOCK 个字节的哈希 */
+    private static int blockHash(byte[] data, int start) {
+        int hash = 0;
+        for (int k = 0; k < BLOCK; k += 1) {
+            hash = hash * PRIME + data[start + k];
+        }
+        return hash;
+    }
+
+    /** BASE[BASESTART..] 与 TARGET[TARGETSTART..] 的公共前缀长度 */
+    private static int matchForward(byte[] base, int baseStart, byte[] target, int targetStart) {
+        int limit = Math.min(base.length - baseStart, target.length - targetStart);
+        int n = 0;
+        while (n < limit && base[baseStart + n] == target[targetStart + n]) {
+            n += 1;
+        }
+        return n;
+    }
+
+    /** 从 BASESTART、TARGETSTART 往前的公共后缀长度，目标最多退到 FLOOR */
+    private static int matchBackward(byte[] base, int baseStart, byte[] target,
+                                     int targetStart, int floor) {
+        int n = 0;
+        while (baseStart - n > 0 && targetStart - n > floor
+               && base[baseStart - n - 1] == target[targetStart - n - 1]) {
+            n += 1;
+        }
+        return n;
+    }
+
+    /** 写出 TARGET[START, END) 的 insert 指令，长了就拆成多条 */
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int start, int end) {
+        while (start < end) {
+            int n = Math.min(MAX_INSERT, end - start);
+            out.write(n);
+            out.write(target, start, n);
+            start += n;
+        }
+    }
+
+    /** 写出 copy 指令 */
+    private static void writeCopy(ByteArrayOutputStream out, int offset, int length) {
+        out.write(OP_COPY);
+        writeVarint(out, offset);
+        writeVarint(out, length);
+    }
+
+    /** 每字节 7 位、低位在前的变长整数 */
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /** 从 DATA[POS[0]] 读一个变长整数，并前移 POS[0] */
+    private static long readVarint(byte[] data, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = data[pos[0]++] & 0xff;
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
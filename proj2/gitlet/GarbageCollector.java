@@ -0,0 +1,134 @@
+package gitlet;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** gc 命令：删除从任何分支、HEAD 和暂存区都到达不了的对象。
+ *
+ *  标记阶段先列出对象库中所有对象（升序）作为对象索引，用一个 BitSet 记录每个对象是否可达；
+ *  从根 commit 沿父节点遍历，标记每个 commit 及其跟踪的 blob（有根 tree 时标记 tree 和子 tree，
+ *  共享的子 tree 只进入一次；分块存储的 blob 还要标记它的各块），
+ *  被保留的差量对象的基础对象也要标记（沿差量链一直到完整对象）。
+ *  清除阶段只删除最后写入时间早于宽限期的不可达对象，
+ *  避免删掉另一个进程刚写入、还没被引用的对象。
+ *
+ *  @author Lucius
+ */
+class GarbageCollector {
+    /** 对象库 */
+    private final ObjectStore store;
+    /** 对象索引：所有对象 ID（升序），下标即位图中的位置 */
+    private final List<String> ids;
+    /** 可达对象位图 */
+    private final BitSet reachable;
+
+    private GarbageCollector(ObjectStore store) {
+        this.store = store;
+        this.ids = store.allIds();
+        this.reachable = new BitSet(ids.size());
+    }
+
+    /** 从根 commit ROOTCOMMITS 与根 blob ROOTBLOBS 标记可达对象，
+     *  删除不可达且最后写入时间早于 CUTOFF（毫秒）的对象。
+     *  BASEHINTS 为重新打包时使用的差量基础对象提示。返回 {删除的对象个数, 释放的字节数, 其中 commit 的个数}。 */
+    static long[] run(ObjectStore store, Set<String> rootCommits, Set<String> rootBlobs,
+                      Map<String, String> baseHints, long cutoff) {
+        GarbageCollector gc = new GarbageCollector(store);
+
+        //1.标记
+        gc.markCommits(rootCommits);
+        for (String blob : rootBlobs) {
+            gc.markBlob(blob);
+        }
+
+        //2.宽限期内的不可达对象也保留
+        Set<String> keep = new HashSet<>();
+        int removed = 0;
+        for (int i = 0; i < gc.ids.size(); i += 1) {
+            String id = gc.ids.get(i);
+            if (gc.reachable.get(i) || store.lastModified(id) >= cutoff) {
+                keep.add(id);
+            } else {
+                removed += 1;
+            }
+        }
+
+        //3.保留下来的差量对象需要它的整条差量链
+        for (String id : new HashSet<>(keep)) {
+            for (String base = store.deltaBaseOf(id); base != null && keep.add(base);
+                 base = store.deltaBaseOf(base)) {
+                removed -= 1;
+            }
+        }
+
+        //4.要删除的对象中的 commit，调用者据此决定是否丢弃 commit 索引
+        int removedCommits = 0;
+        for (String id : gc.ids) {
+            if (!keep.contains(id) && store.typeOf(id) == ObjectStore.TYPE_COMMIT) {
+                removedCommits += 1;
+            }
+        }
+
+        //5.只用保留下来的对象作为差量基础
+        Iterator<Map.Entry<String, String>> it = baseHints.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, String> hint = it.next();
+            if (!keep.contains(hint.getKey()) || !keep.contains(hint.getValue())) {
+                it.remove();
+            }
+        }
+
+        //6.清除
+        long reclaimed = store.prune(keep, baseHints, cutoff);
+        return new long[] {removed, reclaimed, removedCommits};
+    }
+
+    /** 从 ROOTS 沿父节点标记所有可达 commit 及其 tree、跟踪的 blob */
+    private void markCommits(Set<String> roots) {
+        Deque<String> stack = new ArrayDeque<>(roots);
+        while (!stack.isEmpty()) {
+            String commitHash = stack.pop();
+            if (!mark(commitHash)) {
+                continue;
+            }
+            Commit commit = BinaryCodec.decodeCommit(store.read(commitHash, ObjectStore.TYPE_COMMIT));
+            if (commit.getTree() != null) {
+                //已经标记过的子tree（和上一个commit共享的目录）不再进入
+                Tree.walk(store, commit.getTree(), this::mark, this::markBlob);
+            } else {
+                for (String blob : commit.getTrackedFiles().values()) {
+                    markBlob(blob);
+                }
+            }
+            for (String parent : commit.getParents()) {
+                stack.push(parent);
+            }
+        }
+    }
+
+    /** 标记 blob ID，分块存储的 blob 连同它的各块一起标记 */
+    private void markBlob(String id) {
+        if (mark(id)) {
+            for (String chunk : store.chunksOf(id)) {
+                mark(chunk);
+            }
+        }
+    }
+
+    /** 标记对象 ID，第一次标记（且对象存在）时返回 true */
+    private boolean mark(String id) {
+        int i = Collections.binarySearch(ids, id);
+        if (i < 0 || reachable.get(i)) {
+            return false;
+        }
+        reachable.set(i);
+        return true;
+    }
+}
@@ -0,0 +1,112 @@
+package gitlet;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/** log 与 global-log 的输出。
+ *  所有条目写进同一个大缓冲区，最后一次性刷到标准输出；
+ *  日期用线程安全、可复用的 DateTimeFormatter 格式化，不再为每个 commit 新建 SimpleDateFormat。
+ *
+ *  支持的选项：
+ *      --max-count=N（或 -n N）：最多输出 N 个 commit
+ *      --since=DATE：只输出不早于 DATE 的 commit，DATE 为 yyyy-MM-dd 或 yyyy-MM-ddTHH:mm:ss（本地时间）
+ *  log 沿父节点从新往旧走，遇到早于 --since 的 commit 或输出够 N 个就可以停下。
+ *
+ *  @author Lucius
+ */
+class LogPrinter {
+    /** commit 日期格式，例如 Thu Nov 9 20:00:05 2017 -0800 */
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("EEE MMM d HH:mm:ss yyyy Z", Locale.US)
+                             .withZone(ZoneId.systemDefault());
+
+    /** 输出缓冲区大小 */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** 最多输出的 commit 个数 */
+    private int maxCount = Integer.MAX_VALUE;
+    /** 只输出时间戳不早于它的 commit（毫秒） */
+    private long since = Long.MIN_VALUE;
+    /** 已输出的 commit 个数 */
+    private int printed;
+    /** 带缓冲的标准输出 */
+    private final PrintWriter out =
+            new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE));
+
+    private LogPrinter() {
+    }
+
+    /** 解析 OPTIONS，选项不合法时返回 null */
+    static LogPrinter parse(String[] options) {
+        LogPrinter printer = new LogPrinter();
+        try {
+            for (int i = 0; i < options.length; i += 1) {
+                String option = options[i];
+                if (option.startsWith("--max-count=")) {
+                    printer.maxCount = Integer.parseInt(option.substring("--max-count=".length()));
+                } else if (option.equals("-n") && i + 1 < options.length) {
+                    i += 1;
+                    printer.maxCount = Integer.parseInt(options[i]);
+                } else if (option.startsWith("--since=")) {
+                    printer.since = parseDate(option.substring("--since=".length()));
+                } else {
+                    return null;
+                }
+            }
+        } catch (NumberFormatException | DateTimeParseException excp) {
+            return null;
+        }
+        return printer.maxCount < 0 ? null : printer;
+    }
+
+    /** 是否已经输出够了，调用者可以停止遍历 */
+    boolean isFull() {
+        return printed >= maxCount;
+    }
+
+    /** 时间戳为 TIMESTAMP（毫秒）的 commit 是否早于 --since */
+    boolean isTooOld(long timeStamp) {
+        return timeStamp < since;
+    }
+
+    /** 输出 commit ID，--since 过滤掉的不输出 */
+    void print(String id, Commit commit) {
+        if (isFull() || isTooOld(commit.getTimeStamp().getTime())) {
+            return;
+        }
+        out.print("===\n");
+        out.print("commit ");
+        out.print(id);
+        out.print("\nDate: ");
+        out.print(DATE_FORMAT.format(commit.getTimeStamp().toInstant()));
+        out.print('\n');
+        out.print(commit.getMessage());
+        out.print("\n\n");
+        printed += 1;
+    }
+
+    /** 把缓冲的输出刷到标准输出 */
+    void flush() {
+        out.flush();
+    }
+
+    /** 解析 yyyy-MM-dd 或 yyyy-MM-ddTHH:mm:ss（本地时间），返回毫秒时间戳 */
+    private static long parseDate(String text) {
+        ZoneId zone = ZoneId.systemDefault();
+        Instant instant;
+        if (text.contains("T")) {
+            instant = LocalDateTime.parse(text).atZone(zone).toInstant();
+        } else {
+            instant = LocalDate.parse(text).atStartOfDay(zone).toInstant();
+        }
+        return instant.toEpochMilli();
+    }
+}
@@ -1,9 +1,17 @@
 package gitlet;
 
+import java.util.Arrays;
+import java.util.Set;
+
 /** Driver class for Gitlet, a subset of the Git version-control system.
  * @author TODO
  */
 public class Main {
+    /** 会修改仓库的命令：执行期间持有仓库写锁，执行后更新 .gitlet/version，让 daemon 知道缓存已过期 */
+    private static final Set<String> MUTATING_COMMANDS = Set.of(
+            "init", "add", "commit", "rm", "checkout", "branch", "rm-branch", "reset", "merge",
+            "repack", "gc", "upgrade", "add-remote", "rm-remote", "fetch", "push", "pull",
+            "bundle");
 
     /** Usage: java gitlet.Main ARGS, where ARGS contains
      * <COMMAND> <OPERAND1> <OPERAND2> ...
@@ -14,62 +22,76 @@ public class Main {
             return;
         }
 
-        String firstArg = args[0];
         try { // <--- try 从这里开始
+            run(args);
+        } catch (GitletException e) { // <--- catch 紧跟在 try 的 '}' 之后
+            // 从异常对象中获取消息，并打印出来
+            System.out.println(e.getMessage());
+            // 正常退出程序，退出码为 0
+            System.exit(0);
+        }
+    }
+
+    /** 执行一条命令。出错时抛出 GitletException 而不退出 JVM，daemon 在同一个进程里反复调用它 */
+    static void run(String[] args) {
+        if (args.length == 0) {
+            throw new GitletException("Please enter a command.");
+        }
+
+        String firstArg = args[0];
+        //修改仓库的命令持有写锁，只读命令不加锁（对象不可变，引用和暂存区都是原子替换的）；
+        //只读命令需要补齐commit-graph或重建message索引时才中途升级为持有写锁
+        boolean mutating = MUTATING_COMMANDS.contains(firstArg);
+        if (mutating) {
+            Repository.lock();
+        }
+        try {
+            if (!firstArg.equals("init") && !firstArg.equals("upgrade")) {
+                Repository.checkFormat();
+            }
             switch(firstArg) {
                 case "init":
                     if (args.length != 1) {
-                        System.out.println("Incorrect operands");
-                        System.exit(0);
+                        throw new GitletException("Incorrect operands");
                     }
                     Repository.init();
                     break;
                 case "add":
-                    if (args.length != 2) {
-                        System.out.println("Incorrect operands");
-                        System.exit(0);
+                    if (args.length < 2) {
+                        throw new GitletException("Incorrect operands");
                     }
-                    Repository.add(args[1]);
+                    Repository.add(Arrays.asList(args).subList(1, args.length));
                     break;
                 case "commit":
                     if (args.length != 2) {
-                        System.out.println("Incorrect operands");
-                        System.exit(0);
+                        throw new GitletException("Incorrect operands");
                     }
                     Repository.commit(args[1]);
                     break;
                 case "rm":
                     if (args.length != 2) {
-                        System.out.println("Incorrect operands");
-                        System.exit(0);
+                        throw new GitletException("Incorrect operands");
                     }
                     Repository.rm(args[1]);
                     break;
                 case "log":
-                    if (args.length != 1) {
-                        System.out.println("Incorrect operands");
-                        System.exit(0);
-                    }
-                    Repository.log();
+                    Repository.log(Arrays.copyOfRange(args, 1, args.length));
                     break;
                 case "global-log":
-                    if (args.length != 1) {
-                        System.out.println("Incorrect operands");
-                        System.exit(0);
-                    }
-                    Repository.globalLog();
+                    Repository.globalLog(Arrays.copyOfRange(args, 1, args.length));
                     break;
                 case "find":
-                    if (args.length != 2) {
-                        System.out.println("Incorrect operands");
-                        System.exit(0);
+                    if (args.length == 2) {
+                        Repository.find(args[1], false);
+                    } else if (args.length == 3 && args[1].equals("--word")) {
+                        Repository.find(args[2], true);
+                    } else {
+                        throw new GitletException("Incorrect operands");
                     }
-                    Repository.find(args[1]);
                     break;
                 case "status":
                     if (args.length != 1) {
-                        System.out.println("Incorrect operands");
-                        System.exit(0);
+                        throw new GitletException("Incorrect operands");
                     }
                     Repository.status();
                     break;
@@ -85,47 +107,121 @@ public class Main {
                         String fileName = args[3];
                         Repository.checkoutFileFromCommit(commitID, fileName);
                     } else {
-                        System.out.println("Incorrect operands");
-                        System.exit(0);
+                        throw new GitletException("Incorrect operands");
                     }
                     break;
                 case "branch":
                     if (args.length != 2) {
-                        System.out.println("Incorrect operands");
-                        System.exit(0);
+                        throw new GitletException("Incorrect operands");
                     }
                     Repository.branch(args[1]);
                     break;
                 case "rm-branch":
                     if (args.length != 2) {
-                        System.out.println("Incorrect operands");
-                        System.exit(0);
+                        throw new GitletException("Incorrect operands");
                     }
                     Repository.rmBranch(args[1]);
                     break;
                 case "reset":
                     if (args.length != 2) {
-                        System.out.println("Incorrect operands");
-                        System.exit(0);
+                        throw new GitletException("Incorrect operands");
                     }
                     Repository.reset(args[1]);
                     break;
                 case "merge":
                     if (args.length != 2) {
-                        System.out.println("Incorrect operands");
-                        System.exit(0);
+                        throw new GitletException("Incorrect operands");
                     }
                     Repository.merge(args[1]);
                     break;
+                case "add-remote":
+                    if (args.length != 3) {
+                        throw new GitletException("Incorrect operands");
+                    }
+                    Repository.addRemote(args[1], args[2]);
+                    break;
+                case "rm-remote":
+                    if (args.length != 2) {
+                        throw new GitletException("Incorrect operands");
+                    }
+                    Repository.rmRemote(args[1]);
+                    break;
+                case "push":
+                    if (args.length != 3) {
+                        throw new GitletException("Incorrect operands");
+                    }
+                    Repository.push(args[1], args[2]);
+                    break;
+                case "fetch":
+                    if (args.length != 3) {
+                        throw new GitletException("Incorrect operands");
+                    }
+                    Repository.fetch(args[1], args[2]);
+                    break;
+                case "pull":
+                    if (args.length != 3) {
+                        throw new GitletException("Incorrect operands");
+                    }
+                    Repository.pull(args[1], args[2]);
+                    break;
+                case "bundle":
+                    if (args.length == 4 && args[1].equals("create")) {
+                        Repository.bundleCreate(args[2], args[3]);
+                    } else if (args.length == 3 && args[1].equals("unbundle")) {
+                        Repository.unbundle(args[2]);
+                    } else {
+                        throw new GitletException("Incorrect operands");
+                    }
+                    break;
+                case "repack":
+                    if (args.length == 1) {
+                        Repository.repack(false);
+                    } else if (args.length == 2 && args[1].equals("--loose")) {
+                        Repository.repack(true);
+                    } else {
+                        throw new GitletException("Incorrect operands");
+                    }
+                    break;
+                case "gc":
+                    if (args.length == 1) {
+                        Repository.gc(false);
+                    } else if (args.length == 2 && args[1].equals("--now")) {
+                        Repository.gc(true);
+                    } else {
+                        throw new GitletException("Incorrect operands");
+                    }
+                    break;
+                case "diff":
+                    if (args.length > 3) {
+                        throw new GitletException("Incorrect operands");
+                    }
+                    Repository.diff(Arrays.copyOfRange(args, 1, args.length));
+                    break;
+                case "upgrade":
+                    if (args.length != 1) {
+                        throw new GitletException("Incorrect operands");
+                    }
+                    Repository.upgrade();
+                    break;
+                case "daemon":
+                    if (args.length > 2) {
+                        throw new GitletException("Incorrect operands");
+                    }
+                    Repository.daemon(args.length == 2 ? args[1] : null);
+                    break;
                 default:
-                    System.out.println("No command with that name exists.");
-                    System.exit(0);
+                    throw new GitletException("No command with that name exists.");
             }
-        } catch (GitletException e) { // <--- catch 紧跟在 try 的 '}' 之后
-            // 从异常对象中获取消息，并打印出来
-            System.out.println(e.getMessage());
-            // 正常退出程序，退出码为 0
-            System.exit(0);
+        } finally {
+            //即使命令中途出错，仓库也可能已被改动；只读命令追加了索引时也持有写锁，同样要让daemon知道
+            if (mutating || Repository.isLocked()) {
+                try {
+                    Repository.bumpVersion();
+                } finally {
+                    Repository.unlock();
+                }
+            }
+            Repository.reportCacheStats();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,114 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/** 按行的三方合并（diff3），merge 命令用它合并两边都修改过的文件。
+ *
+ *  分别用 MyersDiff 求出 分叉点 与 当前分支、分叉点 与 目标分支 的匹配，
+ *  三者都对齐的行是稳定块，其余的是不稳定块：
+ *      只有一边相对分叉点改动过的块直接取改动的一边；两边改成一样的取任意一边；
+ *      两边改得不一样的块才是冲突，写成
+ *          <<<<<<< HEAD
+ *          当前分支的内容
+ *          =======
+ *          目标分支的内容
+ *          >>>>>>>
+ *  互不重叠的修改因此能自动合并，只有真正冲突的几行带冲突标记。
+ *
+ *  @author Lucius
+ */
+class Merge3 {
+    /** 合并结果 */
+    static class Result {
+        /** 合并后的内容 */
+        final byte[] content;
+        /** 是否有冲突 */
+        final boolean conflict;
+
+        Result(byte[] content, boolean conflict) {
+            this.content = content;
+            this.conflict = conflict;
+        }
+    }
+
+    private Merge3() {
+    }
+
+    /** 以 BASE 为共同祖先合并 OURS 与 THEIRS，三者都可以为空（文件不存在） */
+    static Result merge(byte[] base, byte[] ours, byte[] theirs) {
+        List<String> baseLines = MyersDiff.splitLines(base);
+        List<String> ourLines = MyersDiff.splitLines(ours);
+        List<String> theirLines = MyersDiff.splitLines(theirs);
+        int[][] ids = MyersDiff.toIds(List.of(baseLines, ourLines, theirLines));
+        int[] toOurs = MyersDiff.match(ids[0], ids[1]);
+        int[] toTheirs = MyersDiff.match(ids[0], ids[2]);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean conflict = false;
+        int b = 0;
+        int o = 0;
+        int t = 0;
+        while (b < baseLines.size() || o < ourLines.size() || t < theirLines.size()) {
+            //1.稳定块：三边对齐的行原样输出
+            int stable = 0;
+            while (b + stable < baseLines.size()
+                   && toOurs[b + stable] == o + stable && toTheirs[b + stable] == t + stable) {
+                stable += 1;
+            }
+            if (stable > 0) {
+                write(out, baseLines, b, b + stable);
+                b += stable;
+                o += stable;
+                t += stable;
+                continue;
+            }
+
+            //2.不稳定块：一直到下一个两边都匹配的分叉点行（没有则到末尾）
+            int bEnd = b;
+            while (bEnd < baseLines.size()
+                   && (toOurs[bEnd] == MyersDiff.NONE || toTheirs[bEnd] == MyersDiff.NONE)) {
+                bEnd += 1;
+            }
+            int oEnd = bEnd < baseLines.size() ? toOurs[bEnd] : ourLines.size();
+            int tEnd = bEnd < baseLines.size() ? toTheirs[bEnd] : theirLines.size();
+            boolean oursChanged = !same(ids[1], o, oEnd, ids[0], b, bEnd);
+            boolean theirsChanged = !same(ids[2], t, tEnd, ids[0], b, bEnd);
+            if (!theirsChanged || same(ids[1], o, oEnd, ids[2], t, tEnd)) {
+                write(out, ourLines, o, oEnd);
+            } else if (!oursChanged) {
+                write(out, theirLines, t, tEnd);
+            } else {
+                conflict = true;
+                write(out, "<<<<<<< HEAD\n");
+                write(out, ourLines, o, oEnd);
+                write(out, "=======\n");
+                write(out, theirLines, t, tEnd);
+                write(out, ">>>>>>>\n");
+            }
+            b = bEnd;
+            o = oEnd;
+            t = tEnd;
+        }
+        return new Result(out.toByteArray(), conflict);
+    }
+
+    /** 判断 X[XLO, XHI) 与 Y[YLO, YHI) 是否相同 */
+    private static boolean same(int[] x, int xLo, int xHi, int[] y, int yLo, int yHi) {
+        return Arrays.equals(x, xLo, xHi, y, yLo, yHi);
+    }
+
+    /** 输出 LINES[FROM, TO) */
+    private static void write(ByteArrayOutputStream out, List<String> lines, int from, int to) {
+        for (int i = from; i < to; i += 1) {
+            write(out, lines.get(i));
+        }
+    }
+
+    /** 输出一段文本（按 ISO-8859-1 还原为原始字节） */
+    private static void write(ByteArrayOutputStream out, String text) {
+        out.writeBytes(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,280 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** commit message 的倒排索引，find 命令用它代替逐个读取 commit。
+ *
+ *  message-index 文件：
+ *      "GMSG" | int 版本号 | int 有序记录个数 | 有序记录... | 追加的记录...
+ *      每条记录定长 40 字节：20 字节 SHA-1(message) | 20 字节 commit id
+ *  message-tokens 文件（可选，配置 core.messageTokens=true 时维护）：
+ *      "GTOK" | int 版本号 | int 有序记录个数 | 有序记录... | 追加的记录...
+ *      每条记录定长 28 字节：long 单词 hash | 20 字节 commit id
+ *      单词为 message 中连续的字母或数字，统一转成小写
+ *
+ *  每次 commit（包括 merge 产生的 commit）都把记录追加到文件末尾的无序段；
+ *  无序段超过 MAX_TAIL 条时把整个文件重新排序写出（原子替换），无序段清空。
+ *  索引文件不存在时由调用者从所有 commit 重建一次，重建直接写出有序文件。
+ *  查找时内存映射文件，在有序段上二分查找（同 PackFile.find），再顺序扫描最多 MAX_TAIL 条的无序段，
+ *  不需要读入整个索引，也不需要反序列化任何 commit；
+ *  单词 hash 可能冲突，调用者应当再核对一次 message。
+ *
+ *  @author Lucius
+ */
+class MessageIndex {
+    /** message-index 魔数 */
+    private static final int MESSAGE_MAGIC = 0x474d5347; // "GMSG"
+    /** message-tokens 魔数 */
+    private static final int TOKEN_MAGIC = 0x47544f4b; // "GTOK"
+    /** 格式版本 */
+    private static final int VERSION = 2;
+    /** 文件头长度 */
+    private static final int HEADER = 12;
+    /** 无序段最多的记录条数，超过时重新排序 */
+    private static final int MAX_TAIL = 1024;
+    /** SHA-1 原始字节长度 */
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    /** message-index 每条记录的长度 */
+    private static final int MESSAGE_RECORD = 2 * ID_BYTES;
+    /** message-tokens 每条记录的长度 */
+    private static final int TOKEN_RECORD = 8 + ID_BYTES;
+
+    /** message-index 文件 */
+    private final File messageFile;
+    /** message-tokens 文件，不维护单词索引时为 null */
+    private final File tokenFile;
+
+    private MessageIndex(File messageFile, File tokenFile) {
+        this.messageFile = messageFile;
+        this.tokenFile = tokenFile;
+    }
+
+    /** 打开 MESSAGEFILE（以及 WITHTOKENS 时的 TOKENFILE）中的索引 */
+    static MessageIndex open(File messageFile, File tokenFile, boolean withTokens) {
+        return new MessageIndex(messageFile, withTokens ? tokenFile : null);
+    }
+
+    /** 索引文件是否都存在且为当前版本（否则需要重建） */
+    boolean exists() {
+        return isCurrent(messageFile, MESSAGE_MAGIC) && (tokenFile == null || isCurrent(tokenFile, TOKEN_MAGIC));
+    }
+
+    /** 是否维护单词索引 */
+    boolean hasTokens() {
+        return tokenFile != null;
+    }
+
+    /** 用 MESSAGES（commit id -> message）重写整个索引 */
+    void rebuild(Map<String, String> messages) {
+        ByteArrayOutputStream messageBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream tokenBytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream messageOut = new DataOutputStream(messageBytes);
+            DataOutputStream tokenOut = new DataOutputStream(tokenBytes);
+            for (Map.Entry<String, String> entry : messages.entrySet()) {
+                writeRecords(messageOut, tokenOut, entry.getKey(), entry.getValue());
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        writeSorted(messageFile, MESSAGE_MAGIC, MESSAGE_RECORD, messageBytes.toByteArray());
+        if (tokenFile != null) {
+            writeSorted(tokenFile, TOKEN_MAGIC, TOKEN_RECORD, tokenBytes.toByteArray());
+        }
+    }
+
+    /** 追加 commit ID（message 为 MESSAGE）的记录 */
+    void add(String id, String message) {
+        ByteArrayOutputStream messageBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream tokenBytes = new ByteArrayOutputStream();
+        try {
+            writeRecords(new DataOutputStream(messageBytes), new DataOutputStream(tokenBytes),
+                         id, message);
+            append(messageFile, MESSAGE_MAGIC, MESSAGE_RECORD, messageBytes.toByteArray());
+            if (tokenFile != null) {
+                append(tokenFile, TOKEN_MAGIC, TOKEN_RECORD, tokenBytes.toByteArray());
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** 返回 message 恰好为 MESSAGE 的所有 commit id（升序） */
+    List<String> find(String message) {
+        return lookup(messageFile, MESSAGE_MAGIC, MESSAGE_RECORD, uidToBytes(sha1(message)));
+    }
+
+    /** 返回 message 中可能含有单词 WORD 的 commit id（升序，hash 冲突时可能多出几个） */
+    List<String> findWord(String word) {
+        byte[] key = ByteBuffer.allocate(8).putLong(tokenHash(word.toLowerCase(Locale.ROOT))).array();
+        return lookup(tokenFile, TOKEN_MAGIC, TOKEN_RECORD, key);
+    }
+
+    /** MESSAGE 中的单词（连续的字母或数字，转成小写，去重） */
+    static Set<String> tokens(String message) {
+        Set<String> tokens = new LinkedHashSet<>();
+        for (String token : message.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    /** 写出 commit ID 的 message 记录和单词记录 */
+    private static void writeRecords(DataOutputStream messageOut, DataOutputStream tokenOut,
+                                     String id, String message) throws IOException {
+        byte[] rawId = uidToBytes(id);
+        messageOut.write(uidToBytes(sha1(message)));
+        messageOut.write(rawId);
+        for (String token : tokens(message)) {
+            tokenOut.writeLong(tokenHash(token));
+            tokenOut.write(rawId);
+        }
+    }
+
+    /** 单词的 64 位 hash（SHA-1 的前 8 字节） */
+    private static long tokenHash(String token) {
+        return ByteBuffer.wrap(uidToBytes(sha1(token))).getLong();
+    }
+
+    /** 把 RECORDS（每条 RECORD 字节）追加到 FILE 的无序段，文件不存在时先写文件头；
+     *  上次追加时崩溃留下的不完整记录先截掉，无序段太长时重新排序 */
+    private static void append(File file, int magic, int record, byte[] records) throws IOException {
+        long tail;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            int sorted = 0;
+            if (truncateTorn(raf.getChannel(), HEADER, record)) {
+                raf.writeInt(magic);
+                raf.writeInt(VERSION);
+                raf.writeInt(0);
+            } else {
+                raf.seek(8);
+                sorted = raf.readInt();
+            }
+            raf.seek(raf.length());
+            raf.write(records);
+            tail = (raf.length() - HEADER) / record - sorted;
+        }
+        if (tail > MAX_TAIL) {
+            byte[] contents = readContents(file);
+            writeSorted(file, magic, record, Arrays.copyOfRange(contents, HEADER, contents.length));
+        }
+    }
+
+    /** 把 RECORDS（每条 RECORD 字节）排序后连同文件头原子地写到 FILE，全部记录都在有序段 */
+    private static void writeSorted(File file, int magic, int record, byte[] records) {
+        int count = records.length / record;
+        byte[][] sorted = new byte[count][];
+        for (int i = 0; i < count; i += 1) {
+            sorted[i] = Arrays.copyOfRange(records, i * record, (i + 1) * record);
+        }
+        Arrays.sort(sorted, Arrays::compareUnsigned);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER + count * record);
+        buf.putInt(magic).putInt(VERSION).putInt(count);
+        for (byte[] entry : sorted) {
+            buf.put(entry);
+        }
+        writeContentsAtomic(file, file.getParentFile(), buf.array());
+    }
+
+    /** FILE（每条记录 RECORD 字节，以 KEY 等长的键开头，后接 commit id）中键为 KEY 的 commit id（升序）；
+     *  文件不存在或损坏时返回空；只读命令不持有写锁，这里不删除文件，由 exists 检查后在写锁内重建 */
+    private static List<String> lookup(File file, int magic, int record, byte[] key) {
+        TreeSet<String> result = new TreeSet<>();
+        if (!file.isFile()) {
+            return new ArrayList<>(result);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER) {
+                return new ArrayList<>(result);
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buf.getInt(0) != magic || buf.getInt(4) != VERSION) {
+                return new ArrayList<>(result);
+            }
+            int total = (int) ((size - HEADER) / record);
+            int sorted = Math.min(buf.getInt(8), total);
+
+            //1.有序段：二分查找第一个不小于 KEY 的记录，再向后取出所有相等的
+            int lo = 0;
+            int hi = sorted;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compareKey(buf, HEADER + mid * record, key) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            for (int i = lo; i < sorted; i += 1) {
+                int pos = HEADER + i * record;
+                if (compareKey(buf, pos, key) != 0) {
+                    break;
+                }
+                result.add(idAt(buf, pos + key.length));
+            }
+
+            //2.无序段：顺序扫描
+            for (int i = sorted; i < total; i += 1) {
+                int pos = HEADER + i * record;
+                if (compareKey(buf, pos, key) == 0) {
+                    result.add(idAt(buf, pos + key.length));
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return new ArrayList<>(result);
+    }
+
+    /** 按无符号字节比较 BUF 中从 POS 开始的键与 KEY */
+    private static int compareKey(ByteBuffer buf, int pos, byte[] key) {
+        for (int k = 0; k < key.length; k += 1) {
+            int a = buf.get(pos + k) & 0xff;
+            int b = key[k] & 0xff;
+            if (a != b) {
+                return a < b ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    /** BUF 中从 POS 开始的 20 字节 commit id */
+    private static String idAt(ByteBuffer buf, int pos) {
+        byte[] id = new byte[ID_BYTES];
+        buf.get(pos, id);
+        return bytesToUid(id, 0);
+    }
+
+    /** FILE 是否存在且文件头为魔数 MAGIC 和当前版本 */
+    private static boolean isCurrent(File file, int magic) {
+        if (!file.isFile() || file.length() < HEADER) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return raf.readInt() == magic && raf.readInt() == VERSION;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package gitlet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** 按行比较的 Myers diff（线性空间版本）。
+ *
+ *  先去掉公共前缀和后缀，再在剩下的部分同时从两端搜索“中间蛇”，
+ *  从分割点把问题一分为二递归求解。时间 O((N+M)D)，空间 O(N+M)，
+ *  D 为编辑距离，大文件上的小改动因此很快。
+ *
+ *  行以 ISO-8859-1 解码成 String（与字节一一对应，不会损坏非 UTF-8 内容），保留行尾的换行符，
+ *  比较前先把每一行映射为整数编号，之后只比较整数。
+ *
+ *  @author Lucius
+ */
+class MyersDiff {
+    /** 未匹配 */
+    static final int NONE = -1;
+
+    /** 序列 A、B */
+    private final int[] a;
+    private final int[] b;
+    /** A 的下标 -> 匹配的 B 的下标 */
+    private final int[] matches;
+
+    private MyersDiff(int[] a, int[] b, int[] matches) {
+        this.a = a;
+        this.b = b;
+        this.matches = matches;
+    }
+
+    /** 求 A、B 的一个最长公共子序列，返回 A 的每个下标匹配的 B 的下标（没有匹配为 NONE），
+     *  匹配的下标在两边都是递增的 */
+    static int[] match(int[] a, int[] b) {
+        int[] matches = new int[a.length];
+        Arrays.fill(matches, NONE);
+        match(a, 0, a.length, b, 0, b.length, matches);
+        return matches;
+    }
+
+    /** 只比较 A[ALO, AHI) 与 B[BLO, BHI)，把匹配记入 MATCHES（A 的下标 -> B 的下标） */
+    static void match(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi, int[] matches) {
+        new MyersDiff(a, b, matches).diff(aLo, aHi, bLo, bHi);
+    }
+
+    /** 把 CONTENT 按行切开，每行保留行尾的换行符，最后一行可能没有换行符 */
+    static List<String> splitLines(byte[] content) {
+        String text = new String(content, StandardCharsets.ISO_8859_1);
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < text.length(); i += 1) {
+            if (text.charAt(i) == '\n') {
+                lines.add(text.substring(start, i + 1));
+                start = i + 1;
+            }
+        }
+        if (start < text.length()) {
+            lines.add(text.substring(start));
+        }
+        return lines;
+    }
+
+    /** 把若干个行序列 SEQUENCES 映射为整数编号序列，相同的行得到相同的编号 */
+    static int[][] toIds(List<List<String>> sequences) {
+        Map<String, Integer> ids = new HashMap<>();
+        int[][] result = new int[sequences.size()][];
+        for (int s = 0; s < sequences.size(); s += 1) {
+            List<String> lines = sequences.get(s);
+            result[s] = new int[lines.size()];
+            for (int i = 0; i < lines.size(); i += 1) {
+                Integer id = ids.putIfAbsent(lines.get(i), ids.size());
+                result[s][i] = id == null ? ids.size() - 1 : id;
+            }
+        }
+        return result;
+    }
+
+    /** 比较 A[ALO, AHI) 与 B[BLO, BHI)，把匹配记入 matches */
+    private void diff(int aLo, int aHi, int bLo, int bHi) {
+        //1.公共前缀、后缀直接匹配
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            matches[aLo] = bLo;
+            aLo += 1;
+            bLo += 1;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi -= 1;
+            bHi -= 1;
+            matches[aHi] = bHi;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            return;
+        }
+
+        //2.找到中间蛇的分割点，分成两半递归
+        int[] split = bisect(aLo, aHi, bLo, bHi);
+        if (split == null) {
+            return;
+        }
+        diff(aLo, split[0], bLo, split[1]);
+        diff(split[0], aHi, split[1], bHi);
+    }
+
+    /** 从两端同时搜索 A[ALO, AHI) 与 B[BLO, BHI) 的最短编辑路径，
+     *  返回两条路径相遇处的 {a 下标, b 下标}，没有公共元素时返回 null */
+    private int[] bisect(int aLo, int aHi, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD;
+        int length = 2 * maxD + 2;
+        //forward[k] / reverse[k]：第 k 条对角线上走得最远的 x（reverse 从末尾往回计）
+        int[] forward = new int[length];
+        int[] reverse = new int[length];
+        Arrays.fill(forward, -1);
+        Arrays.fill(reverse, -1);
+        forward[offset + 1] = 0;
+        reverse[offset + 1] = 0;
+        int delta = n - m;
+        //delta 为奇数时在正向搜索中检查相遇，否则在反向搜索中检查
+        boolean checkForward = delta % 2 != 0;
+        int kForwardStart = 0;
+        int kForwardEnd = 0;
+        int kReverseStart = 0;
+        int kReverseEnd = 0;
+        for (int d = 0; d < maxD; d += 1) {
+            //正向
+            for (int k = -d + kForwardStart; k <= d - kForwardEnd; k += 2) {
+                int kOffset = offset + k;
+                int x;
+                if (k == -d || (k != d && forward[kOffset - 1] < forward[kOffset + 1])) {
+                    x = forward[kOffset + 1];
+                } else {
+                    x = forward[kOffset - 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                forward[kOffset] = x;
+                if (x > n) {
+                    kForwardEnd += 2;
+                } else if (y > m) {
+                    kForwardStart += 2;
+                } else if (checkForward) {
+                    int rOffset = offset + delta - k;
+                    if (rOffset >= 0 && rOffset < length && reverse[rOffset] != -1
+                        && x >= n - reverse[rOffset]) {
+                        return new int[] {aLo + x, bLo + y};
+                    }
+                }
+            }
+            //反向
+            for (int k = -d + kReverseStart; k <= d - kReverseEnd; k += 2) {
+                int kOffset = offset + k;
+                int x;
+                if (k == -d || (k != d && reverse[kOffset - 1] < reverse[kOffset + 1])) {
+                    x = reverse[kOffset + 1];
+                } else {
+                    x = reverse[kOffset - 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a[aHi - x - 1] == b[bHi - y - 1]) {
+                    x += 1;
+                    y += 1;
+                }
+                reverse[kOffset] = x;
+                if (x > n) {
+                    kReverseEnd += 2;
+                } else if (y > m) {
+                    kReverseStart += 2;
+                } else if (!checkForward) {
+                    int fOffset = offset + delta - k;
+                    if (fOffset >= 0 && fOffset < length && forward[fOffset] != -1) {
+                        int fx = forward[fOffset];
+                        int fy = offset + fx - fOffset;
+                        if (fx >= n - x) {
+                            return new int[] {aLo + fx, bLo + fy};
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
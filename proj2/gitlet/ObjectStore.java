@@ -0,0 +1,968 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/** gitlet 的对象库，统一管理 commits、trees 和 blobs。
+ *  对象有两种存放方式：
+ *      loose：objects/<hash 前 2 位>/<其余 38 位>，每个对象一个文件，新对象总是先以这种方式写入；
+ *             按首字节分到 256 个子目录，按前缀查找时只需列一个子目录。
+ *             早期版本直接放在 objects/<hash>，这样的对象仍然可以读取，repack / gc 之后就不再存在
+ *      packed：objects/pack/pack-*.pack，由 repack 命令把 loose 对象追加到大文件里，
+ *              通过 mmap 的有序 idx 做 O(log n) 查找，不需要列目录
+ *
+ *  每个对象存储时第一个字节是类型头（TYPE_COMMIT / TYPE_TREE / TYPE_BLOB），之后才是对象内容，
+ *  对象的 hash 只对内容计算。按类型列举对象时只需读类型头（pack 中直接查 idx 的类型表），
+ *  global-log、find 等命令因此不会去读取或反序列化 blob。
+ *
+ *  类型头的最高位 FLAG_DEFLATED 表示对象内容经过 Deflate 压缩。
+ *  配置了压缩级别（core.compression，0-9）时新对象压缩存储，读取时按标志位透明地流式解压，
+ *  repack 写 pack 时也会压缩尚未压缩的对象。
+ *
+ *  pack 中的 blob 还可以存成差量（类型头带 FLAG_DELTA）：内容为 20 字节基础对象 SHA-1 + Delta 差量。
+ *  repack 以同一文件的上一个版本作为基础，差量链长度不超过 pack.depth；
+ *  读取时沿差量链重建，重建出的基础对象放进按字节数限制的 LRU 缓存（pack.deltaCacheSize），
+ *  同一条链上的相邻版本因此不必反复从头重建。
+ *
+ *  打开 core.chunkedBlobs 后，不小于 chunk.minFileSize 的文件按内容切块（见 Chunker）：
+ *  每一块存成一个普通 blob，文件本身存成类型头带 FLAG_CHUNKED 的 blob，
+ *  内容为 long 文件长度 + 各块的 20 字节 SHA-1。文件的 hash 仍然对完整内容计算，其余代码不必区分；
+ *  大文件改动一小部分时只有改动附近的块是新的，其余块在版本之间、文件之间共享。
+ *  读取时按顺序拼接各块，checkout 逐块流式写到工作区文件。
+ *
+ *  @author Lucius
+ */
+class ObjectStore {
+    /** 类型头：commit 对象 */
+    static final byte TYPE_COMMIT = 1;
+
+    /** 类型头：blob 对象 */
+    static final byte TYPE_BLOB = 2;
+
+    /** 类型头：tree 对象（一个目录的文件和子目录，见 Tree） */
+    static final byte TYPE_TREE = 3;
+
+    /** 类型头中表示类型的位 */
+    static final int TYPE_MASK = 0x1f;
+
+    /** 类型头标志位：分块存储的 blob，内容为各块的列表 */
+    static final int FLAG_CHUNKED = 0x20;
+
+    /** 类型头标志位：pack 中的差量对象 */
+    static final int FLAG_DELTA = 0x40;
+
+    /** 类型头标志位：内容经过 Deflate 压缩 */
+    static final int FLAG_DEFLATED = 0x80;
+
+    /** 没有配置压缩级别时 repack 使用的级别 */
+    private static final int DEFAULT_PACK_COMPRESSION = Deflater.DEFAULT_COMPRESSION;
+
+    /** 默认的最大差量链长度 */
+    private static final int DEFAULT_DELTA_DEPTH = 10;
+
+    /** 默认的差量基础对象缓存大小（字节） */
+    private static final long DEFAULT_DELTA_CACHE_SIZE = 32L << 20;
+
+    /** 超过这个大小的 blob 不参与差量，避免整个读进内存 */
+    private static final long MAX_DELTA_SIZE = 16L << 20;
+
+    /** 差量不到原对象这个比例时才值得存成差量 */
+    private static final int DELTA_MAX_PERCENT = 50;
+
+    /** 默认的分块存储最小文件大小（字节） */
+    private static final long DEFAULT_CHUNK_MIN_FILE_SIZE = 1L << 20;
+
+    /** 默认的平均块长（字节） */
+    private static final int DEFAULT_CHUNK_AVG_SIZE = 64 << 10;
+
+    /** objects 目录 */
+    private final File objectsDir;
+
+    /** objects/pack 目录，存放 pack 和 idx 文件 */
+    private final File packDir;
+
+    /** 已打开的 pack，第一次用到时才加载；加载和作废都在本对象的锁内进行 */
+    private volatile List<PackFile> packs;
+
+    /** 新对象的 Deflate 压缩级别，-1 表示不压缩 */
+    private final int compressionLevel;
+
+    /** repack 时允许的最大差量链长度，0 表示不生成差量 */
+    private final int deltaDepth;
+
+    /** 重建差量时用到的基础对象内容 */
+    private final DeltaBaseCache deltaBaseCache;
+
+    /** 不小于这个大小的文件分块存储，-1 表示不分块 */
+    private final long chunkMinFileSize;
+
+    /** 切块器 */
+    private final Chunker chunker;
+
+    /** 对象库位于 OBJECTSDIR，压缩级别、差量链长度等取自 CONFIG */
+    ObjectStore(File objectsDir, Config config) {
+        this.objectsDir = objectsDir;
+        this.packDir = new File(objectsDir, "pack");
+        this.compressionLevel = config.getInt("core.compression", -1);
+        this.deltaDepth = config.getInt("pack.depth", DEFAULT_DELTA_DEPTH);
+        this.deltaBaseCache = new DeltaBaseCache(
+                config.getLong("pack.deltaCacheSize", DEFAULT_DELTA_CACHE_SIZE));
+        this.chunkMinFileSize = config.getBoolean("core.chunkedBlobs", false)
+                ? config.getLong("chunk.minFileSize", DEFAULT_CHUNK_MIN_FILE_SIZE) : -1;
+        this.chunker = new Chunker(config.getInt("chunk.avgSize", DEFAULT_CHUNK_AVG_SIZE));
+    }
+
+    /** 判断对象 ID 是否存在 */
+    boolean contains(String id) {
+        if (!isUid(id)) {
+            return false;
+        }
+        if (looseFile(id).isFile()) {
+            return true;
+        }
+        for (PackFile pack : packs()) {
+            if (pack.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** 读取对象 ID 的内容（去掉类型头，必要时解压、重建差量），并检查其类型是否为 TYPE */
+    byte[] read(String id, byte type) {
+        byte[] raw = readRaw(id);
+        if ((raw[0] & TYPE_MASK) != type) {
+            throw error("Object %s is not of the expected type.", id);
+        }
+        if ((raw[0] & FLAG_CHUNKED) != 0) {
+            //分块存储：按顺序拼接各块
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            for (String chunk : decodeChunks(id, inflateIfNeeded(id, raw, 1))) {
+                content.writeBytes(read(chunk, TYPE_BLOB));
+            }
+            return content.toByteArray();
+        }
+        if ((raw[0] & FLAG_DELTA) != 0) {
+            //差量对象：20 字节基础对象 SHA-1，之后是差量
+            String baseId = bytesToUid(raw, 1);
+            byte[] delta = inflateIfNeeded(id, raw, 1 + UID_LENGTH / 2);
+            return Delta.apply(readBase(baseId), delta);
+        }
+        return inflateIfNeeded(id, raw, 1);
+    }
+
+    /** 返回 RAW 从 OFFSET 开始的部分，类型头带 FLAG_DEFLATED 时先解压 */
+    private static byte[] inflateIfNeeded(String id, byte[] raw, int offset) {
+        if ((raw[0] & FLAG_DEFLATED) == 0) {
+            return Arrays.copyOfRange(raw, offset, raw.length);
+        }
+        try (InputStream in = new InflaterInputStream(
+                new ByteArrayInputStream(raw, offset, raw.length - offset))) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw error("Corrupt object %s.", id);
+        }
+    }
+
+    /** 读取差量的基础对象 BASEID 的内容，优先从缓存取 */
+    private byte[] readBase(String baseId) {
+        byte[] base = deltaBaseCache.get(baseId);
+        if (base == null) {
+            base = read(baseId, TYPE_BLOB);
+            deltaBaseCache.put(baseId, base);
+        }
+        return base;
+    }
+
+    /** 读取对象 ID 的原始字节（含类型头），先查 loose 文件再查 pack。
+     *  差量对象返回的是 pack 中存储的差量，不是重建后的内容。 */
+    byte[] readRaw(String id) {
+        if (isUid(id)) {
+            File loose = looseFile(id);
+            if (loose.isFile()) {
+                return readContents(loose);
+            }
+            for (PackFile pack : packs()) {
+                byte[] data = pack.read(id);
+                if (data != null) {
+                    return data;
+                }
+            }
+        }
+        throw error("Object %s does not exist.", id);
+    }
+
+    /** 返回对象 ID 的类型，只读取类型头，不存在返回 0 */
+    byte typeOf(String id) {
+        return (byte) (headerOf(id) & TYPE_MASK);
+    }
+
+    /** 返回对象 ID 的类型头（含标志位），不存在返回 0 */
+    private int headerOf(String id) {
+        if (!isUid(id)) {
+            return 0;
+        }
+        File loose = looseFile(id);
+        if (loose.isFile()) {
+            return readTypeHeader(loose);
+        }
+        for (PackFile pack : packs()) {
+            int i = pack.find(id);
+            if (i >= 0) {
+                return pack.typeAt(i) & 0xff;
+            }
+        }
+        return 0;
+    }
+
+    /** 分块存储的 blob ID 的各块（按顺序），其他对象返回空列表 */
+    List<String> chunksOf(String id) {
+        if ((headerOf(id) & FLAG_CHUNKED) == 0) {
+            return Collections.emptyList();
+        }
+        return decodeChunks(id, inflateIfNeeded(id, readRaw(id), 1));
+    }
+
+    /** 解析分块 blob ID 的内容 BODY：long 文件长度 + 各块的 20 字节 SHA-1 */
+    private static List<String> decodeChunks(String id, byte[] body) {
+        int idBytes = UID_LENGTH / 2;
+        if (body.length < 8 || (body.length - 8) % idBytes != 0) {
+            throw error("Corrupt object %s.", id);
+        }
+        List<String> chunks = new ArrayList<>((body.length - 8) / idBytes);
+        for (int offset = 8; offset < body.length; offset += idBytes) {
+            chunks.add(bytesToUid(body, offset));
+        }
+        return chunks;
+    }
+
+    /** 以 loose 形式写入类型为 TYPE 的对象 ID，已存在（loose 或 packed）则跳过；
+     *  先写临时文件再原子改名，不加锁的读者不会读到写了一半的对象 */
+    void write(String id, byte type, byte[] data) {
+        if (contains(id)) {
+            return;
+        }
+        if (compressionLevel >= 0) {
+            byte[] deflated = deflate(data, compressionLevel);
+            if (deflated.length < data.length) {
+                writeContentsAtomic(newLooseFile(id), objectsDir,
+                                    new byte[] {(byte) (type | FLAG_DEFLATED)}, deflated);
+                return;
+            }
+        }
+        writeContentsAtomic(newLooseFile(id), objectsDir, new byte[] {type}, data);
+    }
+
+    /** 以流的方式把文件 SOURCE 写入为 blob，返回其 hash。
+     *  一边复制到 objects 下的临时文件一边计算 SHA-1，完成后原子重命名为内容地址，
+     *  内存占用与文件大小无关；对象已存在时丢弃临时文件。 */
+    String writeBlob(File source) {
+        if (chunkMinFileSize >= 0 && source.length() >= chunkMinFileSize) {
+            return writeChunkedBlob(source);
+        }
+        File tmp = null;
+        try {
+            tmp = File.createTempFile("tmp-", null, objectsDir);
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            try (InputStream in = new DigestInputStream(new FileInputStream(source), md);
+                 FileOutputStream file = new FileOutputStream(tmp)) {
+                if (compressionLevel >= 0) {
+                    file.write(TYPE_BLOB | FLAG_DEFLATED);
+                    deflateTo(in, file, compressionLevel);
+                } else {
+                    file.write(TYPE_BLOB);
+                    in.transferTo(file);
+                }
+                //先落盘再改名，分支引用不会指向崩溃后丢失内容的对象
+                file.getChannel().force(true);
+            }
+            String id = bytesToUid(md.digest(), 0);
+            if (contains(id)) {
+                tmp.delete();
+            } else {
+                Files.move(tmp.toPath(), newLooseFile(id).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            return id;
+        } catch (IOException excp) {
+            if (tmp != null) {
+                tmp.delete();
+            }
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** 以流的方式把文件 SOURCE 切块写入为分块 blob，返回其 hash（对完整内容计算）。
+     *  每块作为普通 blob 写入（已有的块直接跳过），内存中最多只有一块 */
+    private String writeChunkedBlob(File source) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+            long[] length = new long[1];
+            try (InputStream in = new DigestInputStream(new FileInputStream(source), md)) {
+                chunker.split(in, (buf, n) -> {
+                    byte[] chunk = Arrays.copyOf(buf, n);
+                    String chunkId = sha1(chunk);
+                    write(chunkId, TYPE_BLOB, chunk);
+                    chunks.write(uidToBytes(chunkId));
+                    length[0] += n;
+                });
+            }
+            String id = bytesToUid(md.digest(), 0);
+            //只有一块时那一块就是文件本身，已经写入
+            if (!contains(id)) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream(8 + chunks.size());
+                new DataOutputStream(body).writeLong(length[0]);
+                chunks.writeTo(body);
+                writeContentsAtomic(newLooseFile(id), objectsDir,
+                                    new byte[] {(byte) (TYPE_BLOB | FLAG_CHUNKED)}, body.toByteArray());
+            }
+            return id;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** 以流的方式把 blob ID 的内容写到文件 TARGET（必要时流式解压），内存占用与 blob 大小无关 */
+    void copyBlobTo(String id, File target) {
+        //文件可能在子目录里，目录不存在时先创建
+        target.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(target)) {
+            streamBlob(id, out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** 把 blob ID 的内容流式写到 OUT，分块存储的 blob 依次写出各块 */
+    void streamBlob(String id, OutputStream out) throws IOException {
+        try (InputStream raw = openRaw(id)) {
+            int header = raw.read();
+            if ((header & TYPE_MASK) != TYPE_BLOB) {
+                throw error("Object %s is not of the expected type.", id);
+            }
+            InputStream in = (header & FLAG_DEFLATED) != 0 ? new InflaterInputStream(raw) : raw;
+            if ((header & FLAG_CHUNKED) != 0) {
+                for (String chunk : decodeChunks(id, in.readAllBytes())) {
+                    streamBlob(chunk, out);
+                }
+            } else {
+                in.transferTo(out);
+            }
+        }
+    }
+
+    /** 把对象 ID 从另一个对象库 SOURCE 复制过来（保存为 loose 对象），已存在则跳过。
+     *  SOURCE 中的 loose 对象直接建硬链接（对象文件只会被整个替换、不会原地修改，共享是安全的），
+     *  不在同一个文件系统上时用 FileChannel.transferTo 复制；packed 对象以流的方式取出。 */
+    void copyFrom(ObjectStore source, String id) {
+        if (contains(id)) {
+            return;
+        }
+        File target = newLooseFile(id);
+        File loose = source.looseFile(id);
+        if (loose.isFile()) {
+            try {
+                //建链接本身是原子的，读者看不到半个对象
+                Files.createLink(target.toPath(), loose.toPath());
+                return;
+            } catch (FileAlreadyExistsException excp) {
+                return;
+            } catch (IOException | UnsupportedOperationException excp) {
+                //跨文件系统等情况，退回到复制
+            }
+        }
+        File tmp = null;
+        try {
+            tmp = File.createTempFile("tmp-", null, objectsDir);
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                if (loose.isFile()) {
+                    try (FileChannel in = FileChannel.open(loose.toPath())) {
+                        long size = in.size();
+                        long position = 0;
+                        while (position < size) {
+                            position += in.transferTo(position, size - position, out.getChannel());
+                        }
+                    }
+                } else {
+                    try (InputStream in = source.openRaw(id)) {
+                        in.transferTo(out);
+                    }
+                }
+                out.getChannel().force(true);
+            }
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            if (tmp != null) {
+                tmp.delete();
+            }
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** 开始写一个新 pack，对象经 PackFile.Writer.add 逐个加入，不产生 loose 对象；
+     *  finish 之后调用 refresh，新 pack 中的对象才对本对象库可见 */
+    PackFile.Writer newPack() {
+        return new PackFile.Writer(packDir, objectsDir,
+                compressionLevel >= 0 ? compressionLevel : DEFAULT_PACK_COMPRESSION);
+    }
+
+    /** 把内容为 CONTENT（读到结尾）的 blob ID 加入 PACK，不产生 loose 对象。
+     *  与 writeBlob 一样，不小于 chunk.minFileSize 时切块：各块和块列表都写进 PACK，已有的块跳过；
+     *  内存中最多只有 chunk.minFileSize 字节或一块。调用者负责核对 CONTENT 的 SHA-1 */
+    void addBlob(PackFile.Writer pack, String id, InputStream content) throws IOException {
+        if (chunkMinFileSize < 0) {
+            pack.add(id, TYPE_BLOB, content);
+            return;
+        }
+        byte[] head = content.readNBytes((int) Math.min(chunkMinFileSize, Integer.MAX_VALUE - 8));
+        if (head.length < chunkMinFileSize) {
+            pack.add(id, TYPE_BLOB, head);
+            return;
+        }
+        ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        long[] length = new long[1];
+        chunker.split(new SequenceInputStream(new ByteArrayInputStream(head), content), (buf, n) -> {
+            byte[] chunk = Arrays.copyOf(buf, n);
+            String chunkId = sha1(chunk);
+            if (!contains(chunkId)) {
+                pack.add(chunkId, TYPE_BLOB, chunk);
+            }
+            chunks.write(uidToBytes(chunkId));
+            length[0] += n;
+        });
+        //只有一块时那一块就是文件本身，已经写入
+        if (!pack.contains(id)) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(8 + chunks.size());
+            new DataOutputStream(body).writeLong(length[0]);
+            chunks.writeTo(body);
+            pack.add(id, (byte) (TYPE_BLOB | FLAG_CHUNKED), body.toByteArray());
+        }
+    }
+
+    /** 以流的方式打开对象 ID 的原始字节（含类型头）。
+     *  差量对象先在内存中重建，返回的是未压缩的完整对象。 */
+    InputStream openRaw(String id) throws IOException {
+        if (isUid(id)) {
+            File loose = looseFile(id);
+            if (loose.isFile()) {
+                return new BufferedInputStream(new FileInputStream(loose), STREAM_BUFFER_SIZE);
+            }
+            for (PackFile pack : packs()) {
+                int i = pack.find(id);
+                if (i < 0) {
+                    continue;
+                }
+                if ((pack.typeAt(i) & FLAG_DELTA) != 0) {
+                    byte[] content = read(id, TYPE_BLOB);
+                    ByteArrayOutputStream raw = new ByteArrayOutputStream(content.length + 1);
+                    raw.write(TYPE_BLOB);
+                    raw.write(content);
+                    return new ByteArrayInputStream(raw.toByteArray());
+                }
+                return new BufferedInputStream(pack.openStream(id), STREAM_BUFFER_SIZE);
+            }
+        }
+        throw error("Object %s does not exist.", id);
+    }
+
+    /** 返回所有类型为 TYPE 的对象的 ID（loose + packed，升序去重） */
+    List<String> listIds(byte type) {
+        TreeSet<String> ids = new TreeSet<>();
+        for (String id : looseIds()) {
+            if ((readTypeHeader(looseFile(id)) & TYPE_MASK) == type) {
+                ids.add(id);
+            }
+        }
+        for (PackFile pack : packs()) {
+            ids.addAll(pack.ids(type));
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /** 返回以 PREFIX 开头、类型为 TYPE 的对象 ID（升序去重），最多 LIMIT 个。
+     *  pack 中用 fan-out 表 + 二分查找；PREFIX 不少于 2 位时 loose 对象只列出对应的一个子目录，
+     *  只读取前缀匹配的对象的类型头。PREFIX 不是十六进制时返回空列表。 */
+    List<String> findByPrefix(String prefix, byte type, int limit) {
+        TreeSet<String> ids = new TreeSet<>();
+        if (!prefix.matches("[0-9a-f]{0," + UID_LENGTH + "}")) {
+            return new ArrayList<>();
+        }
+        for (String id : looseIds(prefix)) {
+            if (ids.size() >= limit) {
+                break;
+            }
+            if ((readTypeHeader(looseFile(id)) & TYPE_MASK) == type) {
+                ids.add(id);
+            }
+        }
+        for (PackFile pack : packs()) {
+            ids.addAll(pack.findPrefix(prefix, type, limit));
+        }
+        List<String> result = new ArrayList<>(ids);
+        return result.size() > limit ? result.subList(0, limit) : result;
+    }
+
+    /** 把所有 loose 对象打包进一个新 pack（尚未压缩的对象在写入时压缩），
+     *  并删除这些 loose 文件，返回打包的对象个数。
+     *  BASEHINTS 为 blob -> 同一文件上一个版本的 blob，按历史顺序排列（基础对象总在前面），
+     *  差量足够小且差量链不超过 pack.depth 时，blob 以差量形式写入 pack。 */
+    int repack(Map<String, String> baseHints) {
+        //1.收集 loose 对象（已被 pack 收录的直接删掉即可）
+        List<String> toPack = new ArrayList<>();
+        List<String> loose = looseIds();
+        for (String id : loose) {
+            if (!inPack(id)) {
+                toPack.add(id);
+            }
+        }
+
+        //2.计算差量，写新 pack
+        if (!toPack.isEmpty()) {
+            Map<String, byte[]> deltas = computeDeltas(new HashSet<>(toPack), baseHints);
+            packDir.mkdir();
+            PackFile.write(packDir, toPack, this,
+                           compressionLevel >= 0 ? compressionLevel : DEFAULT_PACK_COMPRESSION, deltas);
+            refresh();
+        }
+
+        //3.pack 落盘之后才删除 loose 文件
+        for (String id : loose) {
+            deleteLoose(id);
+        }
+        return toPack.size();
+    }
+
+    /** 为 TOPACK 中有基础对象提示的 blob 计算差量，返回 blob -> 20 字节基础对象 SHA-1 + 差量 */
+    private Map<String, byte[]> computeDeltas(Set<String> toPack, Map<String, String> baseHints) {
+        Map<String, byte[]> deltas = new HashMap<>();
+        if (deltaDepth <= 0) {
+            return deltas;
+        }
+        //本次打包中各对象的差量链长度，0 表示完整存储
+        Map<String, Integer> depths = new HashMap<>();
+        for (Map.Entry<String, String> hint : baseHints.entrySet()) {
+            String id = hint.getKey();
+            String baseId = hint.getValue();
+            //分块存储的 blob 已经按块共享，不再做差量
+            if (!toPack.contains(id) || typeOf(id) != TYPE_BLOB || typeOf(baseId) != TYPE_BLOB
+                || ((headerOf(id) | headerOf(baseId)) & FLAG_CHUNKED) != 0
+                || storedSize(id) > MAX_DELTA_SIZE) {
+                continue;
+            }
+            int depth = depths.containsKey(baseId) ? depths.get(baseId) : deltaDepthOf(baseId);
+            if (depth + 1 > deltaDepth) {
+                continue;
+            }
+            byte[] target = read(id, TYPE_BLOB);
+            byte[] base = readBase(baseId);
+            //目标很可能是下一个版本的基础对象
+            deltaBaseCache.put(id, target);
+            byte[] delta = Delta.create(base, target);
+            if ((long) delta.length * 100 >= (long) target.length * DELTA_MAX_PERCENT) {
+                continue;
+            }
+            byte[] entry = new byte[UID_LENGTH / 2 + delta.length];
+            System.arraycopy(uidToBytes(baseId), 0, entry, 0, UID_LENGTH / 2);
+            System.arraycopy(delta, 0, entry, UID_LENGTH / 2, delta.length);
+            deltas.put(id, entry);
+            depths.put(id, depth + 1);
+        }
+        return deltas;
+    }
+
+    /** 返回所有对象的 ID（loose + packed，升序去重） */
+    List<String> allIds() {
+        TreeSet<String> ids = new TreeSet<>(looseIds());
+        for (PackFile pack : packs()) {
+            ids.addAll(pack.ids((byte) 0));
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /** 对象 ID 是否只存在于 pack 中（没有 loose 副本） */
+    boolean isPacked(String id) {
+        return !looseFile(id).isFile() && inPack(id);
+    }
+
+    /** 差量对象 ID 的基础对象，不是差量对象（或是 loose 对象）时返回 null */
+    String deltaBaseOf(String id) {
+        if (looseFile(id).isFile()) {
+            return null;
+        }
+        for (PackFile pack : packs()) {
+            int i = pack.find(id);
+            if (i >= 0) {
+                return (pack.typeAt(i) & FLAG_DELTA) != 0 ? pack.deltaBaseAt(i) : null;
+            }
+        }
+        return null;
+    }
+
+    /** 对象 ID 最后写入的时间（毫秒）：loose 文件或所在 pack 的修改时间 */
+    long lastModified(String id) {
+        File loose = looseFile(id);
+        if (loose.isFile()) {
+            return loose.lastModified();
+        }
+        for (PackFile pack : packs()) {
+            if (pack.contains(id)) {
+                return pack.lastModified();
+            }
+        }
+        return 0;
+    }
+
+    /** 对象 ID 存储占用的字节数（可能是压缩或差量之后的大小） */
+    private long storedSize(String id) {
+        File loose = looseFile(id);
+        if (loose.isFile()) {
+            return loose.length();
+        }
+        for (PackFile pack : packs()) {
+            int i = pack.find(id);
+            if (i >= 0) {
+                return pack.lengthAt(i);
+            }
+        }
+        return 0;
+    }
+
+    /** 删除不在 KEEP 中的对象，返回释放的字节数。
+     *  loose 对象直接删除；pack 中有对象要删除时，把所有 pack 里要保留的对象重新打包成一个新 pack
+     *  （按 BASEHINTS 重新计算差量，BASEHINTS 中的对象都必须在 KEEP 里），再删除旧 pack。
+     *  CUTOFF（毫秒）之前遗留的临时文件也一并清理。 */
+    long prune(Set<String> keep, Map<String, String> baseHints, long cutoff) {
+        long reclaimed = 0;
+
+        //1.loose 对象与遗留的临时文件
+        for (String id : looseIds()) {
+            if (!keep.contains(id)) {
+                reclaimed += deleteLoose(id);
+            }
+        }
+        List<String> names = plainFilenamesIn(objectsDir);
+        if (names != null) {
+            for (String name : names) {
+                File file = new File(objectsDir, name);
+                if (name.startsWith("tmp-") && file.lastModified() < cutoff) {
+                    long length = file.length();
+                    if (file.delete()) {
+                        reclaimed += length;
+                    }
+                }
+            }
+        }
+
+        //2.pack 中有要删除的对象时重新打包
+        List<PackFile> oldPacks = packs();
+        List<String> packed = new ArrayList<>();
+        boolean dropAny = false;
+        for (PackFile pack : oldPacks) {
+            for (String id : pack.ids((byte) 0)) {
+                if (keep.contains(id)) {
+                    packed.add(id);
+                } else {
+                    dropAny = true;
+                }
+            }
+        }
+        if (!dropAny) {
+            return reclaimed;
+        }
+        packed = new ArrayList<>(new TreeSet<>(packed));
+        long oldSize = 0;
+        for (PackFile pack : oldPacks) {
+            oldSize += pack.diskSize();
+        }
+        File newIdx = null;
+        if (!packed.isEmpty()) {
+            Map<String, byte[]> deltas = computeDeltas(new HashSet<>(packed), baseHints);
+            newIdx = PackFile.write(packDir, packed, this,
+                    compressionLevel >= 0 ? compressionLevel : DEFAULT_PACK_COMPRESSION, deltas);
+        }
+        for (PackFile pack : oldPacks) {
+            //新 pack 与某个旧 pack 内容相同时文件名也相同，不能删
+            if (newIdx == null || !pack.isIndex(newIdx)) {
+                pack.delete();
+            }
+        }
+        refresh();
+        long newSize = 0;
+        for (PackFile pack : packs()) {
+            newSize += pack.diskSize();
+        }
+        return reclaimed + oldSize - newSize;
+    }
+
+    /** 已存储的对象 ID 的差量链长度，不是差量对象时为 0 */
+    private int deltaDepthOf(String id) {
+        int depth = 0;
+        String current = id;
+        while (current != null && !looseFile(current).isFile()) {
+            String base = null;
+            for (PackFile pack : packs()) {
+                int i = pack.find(current);
+                if (i >= 0) {
+                    if ((pack.typeAt(i) & FLAG_DELTA) != 0) {
+                        base = pack.deltaBaseAt(i);
+                    }
+                    break;
+                }
+            }
+            if (base == null) {
+                break;
+            }
+            depth += 1;
+            current = base;
+        }
+        return depth;
+    }
+
+    /** 原地压缩所有尚未压缩的 loose 对象（不打包），返回压缩的对象个数。
+     *  每个对象先压缩到临时文件，再原子替换原文件。 */
+    int compressLoose() {
+        int level = compressionLevel >= 0 ? compressionLevel : DEFAULT_PACK_COMPRESSION;
+        int count = 0;
+        for (String id : looseIds()) {
+            File loose = looseFile(id);
+            int header = readTypeHeader(loose);
+            if ((header & FLAG_DEFLATED) != 0) {
+                continue;
+            }
+            File tmp = null;
+            try {
+                tmp = File.createTempFile("tmp-", null, objectsDir);
+                try (InputStream in = new FileInputStream(loose);
+                     OutputStream out = new FileOutputStream(tmp)) {
+                    in.read();
+                    out.write(header | FLAG_DEFLATED);
+                    deflateTo(in, out, level);
+                }
+                Files.move(tmp.toPath(), loose.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                count += 1;
+            } catch (IOException excp) {
+                if (tmp != null) {
+                    tmp.delete();
+                }
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return count;
+    }
+
+    /** 把 IN 的剩余内容按 LEVEL 压缩写入 OUT（不关闭 OUT） */
+    static void deflateTo(InputStream in, OutputStream out, int level) throws IOException {
+        Deflater deflater = new Deflater(level);
+        try {
+            DeflaterOutputStream deflating = new DeflaterOutputStream(out, deflater, STREAM_BUFFER_SIZE);
+            in.transferTo(deflating);
+            deflating.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** 把 DATA 按 LEVEL 压缩 */
+    private static byte[] deflate(byte[] data, int level) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            deflateTo(new ByteArrayInputStream(data), out, level);
+            return out.toByteArray();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** 差量基础对象的 LRU 缓存，按内容总字节数限制大小；并行 checkout 时会被多个线程访问 */
+    private static class DeltaBaseCache {
+        /** 缓存内容总字节数上限 */
+        private final long capacity;
+        /** 当前缓存内容总字节数 */
+        private long size;
+        /** 对象 ID -> 内容，按访问顺序排列 */
+        private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        DeltaBaseCache(long capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized byte[] get(String id) {
+            return entries.get(id);
+        }
+
+        synchronized void put(String id, byte[] content) {
+            if (content.length > capacity) {
+                return;
+            }
+            byte[] old = entries.put(id, content);
+            if (old != null) {
+                size -= old.length;
+            }
+            size += content.length;
+            Iterator<byte[]> it = entries.values().iterator();
+            while (size > capacity && it.hasNext()) {
+                size -= it.next().length;
+                it.remove();
+            }
+        }
+    }
+
+    /** 丢弃已加载的 pack 列表（其他进程可能重新打包过），下次用到时重新扫描 */
+    synchronized void refresh() {
+        packs = null;
+    }
+
+    /** 判断对象 ID 是否已被某个 pack 收录 */
+    private boolean inPack(String id) {
+        for (PackFile pack : packs()) {
+            if (pack.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** 所有 loose 对象的 ID（升序） */
+    private List<String> looseIds() {
+        return looseIds("");
+    }
+
+    /** 以 PREFIX 开头的 loose 对象的 ID（升序）。
+     *  PREFIX 不少于 2 位时只列出对应的子目录，另外只按文件名过滤 objects 下旧布局的对象，不逐个 stat */
+    private List<String> looseIds(String prefix) {
+        TreeSet<String> result = new TreeSet<>();
+        String[] names = objectsDir.list();
+        if (names == null) {
+            return new ArrayList<>();
+        }
+        for (String name : names) {
+            if (isUid(name) && name.startsWith(prefix)) {
+                result.add(name);
+            }
+        }
+        if (prefix.length() >= 2) {
+            addFanOutIds(prefix.substring(0, 2), prefix, result);
+        } else {
+            for (String name : names) {
+                if (name.length() == 2 && name.startsWith(prefix)) {
+                    addFanOutIds(name, prefix, result);
+                }
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /** 把子目录 objects/DIRNAME 中以 PREFIX 开头的对象 ID 放进 RESULT */
+    private void addFanOutIds(String dirName, String prefix, Set<String> result) {
+        String[] names = new File(objectsDir, dirName).list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            String id = dirName + name;
+            if (isUid(id) && id.startsWith(prefix)) {
+                result.add(id);
+            }
+        }
+    }
+
+    /** 读取 loose 文件 FILE 的类型头（含标志位） */
+    private static int readTypeHeader(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            return in.read();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** 对象 ID 对应的 loose 文件路径：objects/<前 2 位>/<其余 38 位>，只有旧布局的文件存在时返回旧路径 */
+    private File looseFile(String id) {
+        File file = fanOutFile(id);
+        if (!file.isFile()) {
+            File legacy = new File(objectsDir, id);
+            if (legacy.isFile()) {
+                return legacy;
+            }
+        }
+        return file;
+    }
+
+    /** 写入新 loose 对象 ID 的路径，所在子目录不存在时先创建 */
+    private File newLooseFile(String id) {
+        File file = fanOutFile(id);
+        file.getParentFile().mkdir();
+        return file;
+    }
+
+    /** 对象 ID 在子目录布局下的路径 */
+    private File fanOutFile(String id) {
+        return new File(new File(objectsDir, id.substring(0, 2)), id.substring(2));
+    }
+
+    /** 删除对象 ID 的 loose 文件（两种布局都删），返回释放的字节数 */
+    private long deleteLoose(String id) {
+        long reclaimed = 0;
+        for (File file : new File[] {fanOutFile(id), new File(objectsDir, id)}) {
+            long length = file.length();
+            if (file.delete()) {
+                reclaimed += length;
+            }
+        }
+        return reclaimed;
+    }
+
+    /** 懒加载 pack 目录下所有 idx */
+    private synchronized List<PackFile> packs() {
+        List<PackFile> result = packs;
+        if (result == null) {
+            //先装好完整的列表再发布，其他线程不会看到装了一半的列表
+            result = new ArrayList<>();
+            List<String> names = plainFilenamesIn(packDir);
+            if (names != null) {
+                for (String name : names) {
+                    if (name.startsWith("pack-") && name.endsWith(".idx")) {
+                        result.add(PackFile.open(new File(packDir, name)));
+                    }
+                }
+            }
+            packs = result;
+        }
+        return result;
+    }
+}
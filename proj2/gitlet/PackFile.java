@@ -0,0 +1,554 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** 一个打包文件（pack）及其索引（idx）。
+ *
+ *  pack 文件格式：
+ *      "GPAK" | int 版本号 | int 对象个数 | 对象...
+ *      每个对象为 long 长度 + 对象原始字节（含类型头字节，与 loose 文件内容相同）
+ *      类型头带 ObjectStore.FLAG_DELTA 的对象之后是 20 字节基础对象 SHA-1 + （压缩的）差量
+ *
+ *  idx 文件格式（整体 mmap 进内存）：
+ *      "GIDX" | int 版本号 | int[256] fan-out 表 | N * 20 字节 SHA-1（升序）| N * long 偏移量
+ *      | N * byte 对象类型
+ *      fan-out[b] 为首字节 <= b 的对象个数，先用它缩小范围，再二分查找，查找为 O(log n)
+ *      类型表使得按类型列举对象时不需要读 pack 本身
+ *
+ *  @author Lucius
+ */
+class PackFile {
+    /** pack 文件魔数 */
+    static final int PACK_MAGIC = 0x4750414b; // "GPAK"
+    /** idx 文件魔数 */
+    static final int IDX_MAGIC = 0x47494458; // "GIDX"
+    /** 当前格式版本，3 起支持差量对象 */
+    static final int VERSION = 3;
+    /** 仍能读取的最早格式版本 */
+    private static final int MIN_VERSION = 2;
+
+    /** SHA-1 原始字节长度 */
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    /** idx 头部长度：魔数 + 版本号 + fan-out 表 */
+    private static final int IDX_HEADER = 8 + 256 * 4;
+    /** pack 头部长度：魔数 + 版本号 + 对象个数 */
+    static final int PACK_HEADER = 12;
+
+    /** pack 文件 */
+    private final File packFile;
+    /** idx 文件 */
+    private final File idxFile;
+    /** 映射到内存的 idx */
+    private final MappedByteBuffer idx;
+    /** 对象个数 */
+    private final int count;
+
+    private PackFile(File packFile, File idxFile, MappedByteBuffer idx) {
+        this.packFile = packFile;
+        this.idxFile = idxFile;
+        this.idx = idx;
+        this.count = idx.getInt(8 + 255 * 4);
+    }
+
+    /** 打开 IDXFILE 及与其同名的 pack 文件 */
+    static PackFile open(File idxFile) {
+        String name = idxFile.getName();
+        File packFile = new File(idxFile.getParentFile(),
+                name.substring(0, name.length() - ".idx".length()) + ".pack");
+        try (FileChannel channel = FileChannel.open(idxFile.toPath())) {
+            MappedByteBuffer idx = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int version = idx.getInt(4);
+            if (idx.getInt(0) != IDX_MAGIC || version < MIN_VERSION || version > VERSION) {
+                throw error("Corrupt pack index %s.", idxFile.getName());
+            }
+            return new PackFile(packFile, idxFile, idx);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** 对象个数 */
+    int size() {
+        return count;
+    }
+
+    /** 返回 ID 在索引中的位置，不存在返回 -1 */
+    int find(String id) {
+        byte[] key = uidToBytes(id);
+        int first = key[0] & 0xff;
+        int lo = first == 0 ? 0 : idx.getInt(8 + (first - 1) * 4);
+        int hi = idx.getInt(8 + first * 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareId(mid, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** 返回以 PREFIX（小写十六进制）开头、类型为 TYPE 的对象 SHA-1（升序），最多 LIMIT 个。
+     *  先用 fan-out 表按首字节缩小范围，再二分查找第一个不小于 PREFIX 的位置，为 O(log n)。 */
+    List<String> findPrefix(String prefix, byte type, int limit) {
+        int lo;
+        int hi;
+        if (prefix.length() >= 2) {
+            int first = Integer.parseInt(prefix.substring(0, 2), 16);
+            lo = first == 0 ? 0 : idx.getInt(8 + (first - 1) * 4);
+            hi = idx.getInt(8 + first * 4);
+        } else {
+            //只有半个字节时，范围是 16 个首字节
+            int nibble = prefix.isEmpty() ? 0 : Integer.parseInt(prefix, 16);
+            int firstByte = nibble * 16;
+            int lastByte = prefix.isEmpty() ? 255 : firstByte + 15;
+            lo = firstByte == 0 ? 0 : idx.getInt(8 + (firstByte - 1) * 4);
+            hi = idx.getInt(8 + lastByte * 4);
+        }
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (idAt(mid).compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        List<String> result = new ArrayList<>();
+        for (int i = lo; i < count && result.size() < limit; i += 1) {
+            String id = idAt(i);
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            if ((typeAt(i) & ObjectStore.TYPE_MASK) == type) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /** 判断该 pack 中是否有对象 ID */
+    boolean contains(String id) {
+        return find(id) >= 0;
+    }
+
+    /** 第 I 个对象的 SHA-1 */
+    String idAt(int i) {
+        byte[] raw = new byte[ID_BYTES];
+        idx.get(IDX_HEADER + i * ID_BYTES, raw);
+        return bytesToUid(raw, 0);
+    }
+
+    /** 第 I 个对象在 pack 中的偏移量 */
+    long offsetAt(int i) {
+        return idx.getLong(IDX_HEADER + count * ID_BYTES + i * 8);
+    }
+
+    /** 第 I 个对象的类型头（含标志位） */
+    byte typeAt(int i) {
+        return idx.get(IDX_HEADER + count * (ID_BYTES + 8) + i);
+    }
+
+    /** 第 I 个对象在 pack 中存储的字节数（含类型头） */
+    long lengthAt(int i) {
+        try (FileChannel channel = FileChannel.open(packFile.toPath())) {
+            ByteBuffer lengthBuf = ByteBuffer.allocate(8);
+            readFully(channel, lengthBuf, offsetAt(i));
+            return lengthBuf.getLong(0);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** pack 文件的修改时间（毫秒） */
+    long lastModified() {
+        return packFile.lastModified();
+    }
+
+    /** pack 与 idx 文件一共占用的字节数 */
+    long diskSize() {
+        return packFile.length() + idxFile.length();
+    }
+
+    /** 该 pack 的 idx 文件是否就是 FILE */
+    boolean isIndex(File file) {
+        return idxFile.equals(file);
+    }
+
+    /** 删除 pack 与 idx 文件（先删 idx，读者就不会再发现这个 pack） */
+    void delete() {
+        idxFile.delete();
+        packFile.delete();
+    }
+
+    /** 第 I 个对象（必须是差量对象）的基础对象 SHA-1 */
+    String deltaBaseAt(int i) {
+        try (FileChannel channel = FileChannel.open(packFile.toPath())) {
+            ByteBuffer raw = ByteBuffer.allocate(ID_BYTES);
+            readFully(channel, raw, offsetAt(i) + 8 + 1);
+            return bytesToUid(raw.array(), 0);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** 读取对象 ID 的原始字节（含类型头），不存在返回 null */
+    byte[] read(String id) {
+        int i = find(id);
+        if (i < 0) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(packFile.toPath())) {
+            long offset = offsetAt(i);
+            ByteBuffer lengthBuf = ByteBuffer.allocate(8);
+            readFully(channel, lengthBuf, offset);
+            ByteBuffer data = ByteBuffer.allocate(Math.toIntExact(lengthBuf.getLong(0)));
+            readFully(channel, data, offset + 8);
+            return data.array();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** 以流的方式打开对象 ID 的原始字节（含类型头），不存在返回 null */
+    InputStream openStream(String id) {
+        int i = find(id);
+        if (i < 0) {
+            return null;
+        }
+        try {
+            FileChannel channel = FileChannel.open(packFile.toPath());
+            long offset = offsetAt(i);
+            ByteBuffer lengthBuf = ByteBuffer.allocate(8);
+            readFully(channel, lengthBuf, offset);
+            return new EntryInputStream(channel, offset + 8, lengthBuf.getLong(0));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** 列出该 pack 中所有类型为 TYPE 的对象的 SHA-1（升序），TYPE 为 0 时列出全部 */
+    List<String> ids(byte type) {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < count; i += 1) {
+            if (type == 0 || (typeAt(i) & ObjectStore.TYPE_MASK) == type) {
+                result.add(idAt(i));
+            }
+        }
+        return result;
+    }
+
+    /** pack 中单个对象的输入流，只读 [START, START + LENGTH) 这一段 */
+    private static class EntryInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        EntryInputStream(FileChannel channel, long start, long length) {
+            this.channel = channel;
+            this.position = start;
+            this.end = start + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int want = (int) Math.min(len, end - position);
+            int n = channel.read(ByteBuffer.wrap(b, off, want), position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of pack file.");
+            }
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /** 比较第 I 个 SHA-1 与 KEY 的大小（按无符号字节） */
+    private int compareId(int i, byte[] key) {
+        int base = IDX_HEADER + i * ID_BYTES;
+        for (int k = 0; k < ID_BYTES; k += 1) {
+            int a = idx.get(base + k) & 0xff;
+            int b = key[k] & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return 0;
+    }
+
+    /** 从 CHANNEL 的 POSITION 处读满 BUF */
+    static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of pack file.");
+            }
+        }
+    }
+
+    /** 把对象 ID 流式复制到 pack（OUT 与 CHANNELOUT 指向同一文件），尚未压缩的按 LEVEL 压缩，
+     *  返回写入的类型头 */
+    private static byte copyEntry(ObjectStore source, String id, RandomAccessFile out,
+                                  OutputStream channelOut, int level) throws IOException {
+        try (InputStream in = source.openRaw(id)) {
+            int header = in.read();
+            if ((header & ObjectStore.FLAG_DEFLATED) == 0) {
+                header |= ObjectStore.FLAG_DEFLATED;
+                out.write(header);
+                ObjectStore.deflateTo(in, channelOut, level);
+            } else {
+                out.write(header);
+                in.transferTo(channelOut);
+            }
+            return (byte) header;
+        }
+    }
+
+    /** 在 DIR 下写出新的 pack 与 idx，内容为 SOURCE 中的所有对象（IDS 必须升序），
+     *  尚未压缩的对象按 LEVEL 压缩后写入；DELTAS 中有的对象（20 字节基础对象 SHA-1 + 差量）
+     *  以差量形式写入。返回写出的 idx 文件。
+     *  先写临时文件再重命名，中途失败不会留下半个 pack。 */
+    static File write(File dir, List<String> ids, ObjectStore source, int level,
+                      Map<String, byte[]> deltas) {
+        String name = "pack-" + sha1(String.join("", ids));
+        File packFile = new File(dir, name + ".pack");
+        File idxFile = new File(dir, name + ".idx");
+        File packTmp = new File(dir, name + ".pack.tmp");
+        File idxTmp = new File(dir, name + ".idx.tmp");
+        long[] offsets = new long[ids.size()];
+        byte[] types = new byte[ids.size()];
+        try {
+            //1.顺序追加所有对象到 pack
+            try (RandomAccessFile out = new RandomAccessFile(packTmp, "rw")) {
+                out.setLength(0);
+                out.writeInt(PACK_MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(ids.size());
+                OutputStream channelOut = Channels.newOutputStream(out.getChannel());
+                for (int i = 0; i < ids.size(); i += 1) {
+                    //先占位长度，流式复制（必要时压缩）对象后再回填，大对象也不需要整个读进内存
+                    offsets[i] = out.getFilePointer();
+                    out.writeLong(0);
+                    byte[] delta = deltas.get(ids.get(i));
+                    if (delta != null) {
+                        int header = ObjectStore.TYPE_BLOB | ObjectStore.FLAG_DELTA
+                                     | ObjectStore.FLAG_DEFLATED;
+                        out.write(header);
+                        out.write(delta, 0, ID_BYTES);
+                        ObjectStore.deflateTo(new ByteArrayInputStream(delta, ID_BYTES,
+                                delta.length - ID_BYTES), channelOut, level);
+                        types[i] = (byte) header;
+                    } else {
+                        types[i] = copyEntry(source, ids.get(i), out, channelOut, level);
+                    }
+                    long length = out.getFilePointer() - offsets[i] - 8;
+                    out.seek(offsets[i]);
+                    out.writeLong(length);
+                    out.seek(offsets[i] + 8 + length);
+                }
+                out.getFD().sync();
+            }
+
+            //2.写 idx
+            writeIdx(idxTmp, ids, offsets, types);
+
+            //3.先放好 pack 再放 idx，读者只通过 idx 发现 pack
+            if (!packTmp.renameTo(packFile) || !idxTmp.renameTo(idxFile)) {
+                throw error("Failed to write pack %s.", name);
+            }
+            return idxFile;
+        } catch (IOException excp) {
+            packTmp.delete();
+            idxTmp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** 写出 idx 文件 FILE：fan-out 表 + 排好序的 SHA-1（IDS 必须升序）+ 偏移量 OFFSETS + 类型 TYPES */
+    private static void writeIdx(File file, List<String> ids, long[] offsets, byte[] types) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(IDX_HEADER + ids.size() * (ID_BYTES + 8 + 1));
+        buf.putInt(IDX_MAGIC);
+        buf.putInt(VERSION);
+        int[] fanout = new int[256];
+        for (String id : ids) {
+            fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+        }
+        int total = 0;
+        for (int b = 0; b < 256; b += 1) {
+            total += fanout[b];
+            buf.putInt(total);
+        }
+        for (String id : ids) {
+            buf.put(uidToBytes(id));
+        }
+        for (long offset : offsets) {
+            buf.putLong(offset);
+        }
+        buf.put(types);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(0);
+            out.write(buf.array());
+            out.getFD().sync();
+        }
+    }
+
+    /** 顺序追加对象的 pack 写入器：对象可以按任意顺序、以内存中的内容逐个加入，
+     *  finish 时回填对象个数、排序后写出 idx，再把 pack 和 idx 放到正式的名字下。
+     *  不经过 loose 对象，一批对象只产生一个临时文件（unbundle 用它把 bundle 直接写成 pack）。 */
+    static class Writer implements AutoCloseable {
+        /** pack 目录 */
+        private final File dir;
+        /** 压缩级别 */
+        private final int level;
+        /** 正在写的临时 pack 文件 */
+        private final File packTmp;
+        /** 临时 pack 文件 */
+        private final RandomAccessFile out;
+        /** 与 out 指向同一文件的流 */
+        private final OutputStream channelOut;
+        /** 已写入的对象 -> 它在 pack 中的偏移量，按 SHA-1 升序 */
+        private final TreeMap<String, Long> offsets = new TreeMap<>();
+        /** 已写入的对象 -> 类型头 */
+        private final Map<String, Byte> types = new HashMap<>();
+        /** 是否已经完成（完成后 close 不再删除文件） */
+        private boolean finished;
+
+        /** 在 DIR 下写一个新 pack，对象按 LEVEL 压缩；临时文件放在 TMPDIR（须与 DIR 在同一文件系统，
+         *  中途崩溃留下的临时文件由 gc 清理） */
+        Writer(File dir, File tmpDir, int level) {
+            this.dir = dir;
+            this.level = level;
+            try {
+                dir.mkdirs();
+                this.packTmp = File.createTempFile("tmp-", null, tmpDir);
+                this.out = new RandomAccessFile(packTmp, "rw");
+                out.writeInt(PACK_MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(0);
+                this.channelOut = Channels.newOutputStream(out.getChannel());
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        /** 加入类型为 TYPE、内容为 CONTENT 的对象 ID，同一个对象只写一次 */
+        void add(String id, byte type, byte[] content) {
+            try {
+                add(id, type, new ByteArrayInputStream(content));
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        /** 加入类型为 TYPE 的对象 ID，内容从 CONTENT 流式读到结尾，边读边压缩写出，内存占用与对象大小无关；
+         *  同一个对象只写一次（再次加入时不读取 CONTENT）。读取 CONTENT 出错（例如流提前结束）时原样抛出，
+         *  之后不能再加入对象，调用者应当放弃整个 pack */
+        void add(String id, byte type, InputStream content) throws IOException {
+            if (offsets.containsKey(id)) {
+                return;
+            }
+            long offset = out.getFilePointer();
+            out.writeLong(0);
+            int header = type | ObjectStore.FLAG_DEFLATED;
+            out.write(header);
+            ObjectStore.deflateTo(content, channelOut, level);
+            long length = out.getFilePointer() - offset - 8;
+            out.seek(offset);
+            out.writeLong(length);
+            out.seek(offset + 8 + length);
+            offsets.put(id, offset);
+            types.put(id, (byte) header);
+        }
+
+        /** 对象 ID 是否已经写入 */
+        boolean contains(String id) {
+            return offsets.containsKey(id);
+        }
+
+        /** 写入的对象个数 */
+        int size() {
+            return offsets.size();
+        }
+
+        /** 写出 idx，把 pack 和 idx 放到正式的名字下；没有写入任何对象时什么也不留下，返回 null */
+        File finish() {
+            try {
+                if (offsets.isEmpty()) {
+                    return null;
+                }
+                out.seek(8);
+                out.writeInt(offsets.size());
+                out.getFD().sync();
+                out.close();
+
+                List<String> ids = new ArrayList<>(offsets.keySet());
+                long[] offsetArray = new long[ids.size()];
+                byte[] typeArray = new byte[ids.size()];
+                for (int i = 0; i < ids.size(); i += 1) {
+                    offsetArray[i] = offsets.get(ids.get(i));
+                    typeArray[i] = types.get(ids.get(i));
+                }
+                String name = "pack-" + sha1(String.join("", ids));
+                File packFile = new File(dir, name + ".pack");
+                File idxFile = new File(dir, name + ".idx");
+                File idxTmp = new File(dir, name + ".idx.tmp");
+                writeIdx(idxTmp, ids, offsetArray, typeArray);
+                //先放好 pack 再放 idx，读者只通过 idx 发现 pack
+                if (!packTmp.renameTo(packFile) || !idxTmp.renameTo(idxFile)) {
+                    idxTmp.delete();
+                    throw error("Failed to write pack %s.", name);
+                }
+                finished = true;
+                return idxFile;
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        /** 没有完成时丢弃临时 pack */
+        @Override
+        public void close() {
+            try {
+                out.close();
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            } finally {
+                if (!finished) {
+                    packTmp.delete();
+                }
+            }
+        }
+    }
+}
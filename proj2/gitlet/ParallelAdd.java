@@ -0,0 +1,129 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static gitlet.Utils.*;
+
+/** add 命令的批量部分：展开路径（目录递归到所有普通文件），并行计算 hash、写入 blob。
+ *  每个文件先查 stat 缓存，stat 没变且 blob 已在对象库中的直接用缓存的 hash，
+ *  否则流式写入 blob；hash 与写入分给一个 fork-join 线程池，线程数由配置 add.threads
+ *  决定（默认为 CPU 核数），文件很少时直接在当前线程完成。
+ *  stat 缓存不是线程安全的，并行阶段只读它，全部完成后再在当前线程统一更新。
+ *
+ *  文件名相对工作目录，子目录用 / 分隔，与 commit 中记录的文件名一致。
+ *
+ *  @author Lucius
+ */
+class ParallelAdd {
+    /** 少于这么多文件时不值得启动线程池 */
+    private static final int MIN_PARALLEL_FILES = 16;
+
+    private ParallelAdd() {
+    }
+
+    /** 列出 WORKDIR 下 PATH（文件或目录，"." 为整个工作区）中的所有普通文件，
+     *  返回相对 WORKDIR 的文件名（升序），跳过 .gitlet；PATH 不存在或在工作区之外时返回 null */
+    static List<String> listFiles(File workDir, String path) {
+        Path root = workDir.toPath().toAbsolutePath().normalize();
+        Path start = root.resolve(path).normalize();
+        if (!start.startsWith(root) || isInGitletDir(root, start) || !Files.exists(start)) {
+            return null;
+        }
+        List<String> result = new ArrayList<>();
+        if (Files.isRegularFile(start)) {
+            result.add(relativeName(root, start));
+            return result;
+        }
+        try (Stream<Path> paths = Files.walk(start)) {
+            paths.filter(p -> Files.isRegularFile(p) && !isInGitletDir(root, p))
+                 .forEach(p -> result.add(relativeName(root, p)));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /** 计算工作区 WORKDIR 中 FILENAMES 的 blob hash，需要时写入 STORE，
+     *  返回 文件名 -> hash；重新计算过的文件同步到 STATCACHE（由调用者保存） */
+    static Map<String, String> hashAll(ObjectStore store, File workDir, List<String> fileNames,
+                                       int threads, StatCache statCache) {
+        String[] hashes = new String[fileNames.size()];
+        boolean[] fresh = new boolean[fileNames.size()];
+
+        //1.并行计算 hash、写 blob
+        if (threads <= 1 || fileNames.size() < MIN_PARALLEL_FILES) {
+            for (int i = 0; i < fileNames.size(); i += 1) {
+                hashOne(store, workDir, fileNames, i, statCache, hashes, fresh);
+            }
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(Math.min(threads, fileNames.size()));
+            try {
+                List<Future<?>> tasks = new ArrayList<>(fileNames.size());
+                for (int i = 0; i < fileNames.size(); i += 1) {
+                    int index = i;
+                    tasks.add(pool.submit(() ->
+                            hashOne(store, workDir, fileNames, index, statCache, hashes, fresh)));
+                }
+                //等待全部完成，任何一个失败都把异常抛给调用者
+                for (Future<?> task : tasks) {
+                    task.get();
+                }
+            } catch (ExecutionException excp) {
+                if (excp.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) excp.getCause();
+                }
+                throw new IllegalArgumentException(excp.getCause());
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+                throw error("Add interrupted.");
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        //2.在当前线程更新 stat 缓存
+        Map<String, String> result = new HashMap<>();
+        for (int i = 0; i < fileNames.size(); i += 1) {
+            if (fresh[i]) {
+                statCache.update(fileNames.get(i), hashes[i]);
+            }
+            result.put(fileNames.get(i), hashes[i]);
+        }
+        return result;
+    }
+
+    /** 计算第 I 个文件的 hash 存入 HASHES[I]，重新写过 blob 的在 FRESH[I] 中标记 */
+    private static void hashOne(ObjectStore store, File workDir, List<String> fileNames, int i,
+                                StatCache statCache, String[] hashes, boolean[] fresh) {
+        String fileName = fileNames.get(i);
+        String hash = statCache.cachedHash(fileName);
+        if (hash == null || !store.contains(hash)) {
+            hash = store.writeBlob(join(workDir, fileName));
+            fresh[i] = true;
+        }
+        hashes[i] = hash;
+    }
+
+    /** P 相对 ROOT 的文件名，用 / 分隔 */
+    private static String relativeName(Path root, Path p) {
+        return root.relativize(p).toString().replace(File.separatorChar, '/');
+    }
+
+    /** P 是否在 ROOT 下的 .gitlet 目录里 */
+    private static boolean isInGitletDir(Path root, Path p) {
+        return root.relativize(p).startsWith(".gitlet");
+    }
+}
@@ -0,0 +1,71 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static gitlet.Utils.*;
+
+/** 把一个 commit 的文件写到工作区（checkout 分支、reset 用）。
+ *  读 blob、写工作区文件分给一个固定大小的线程池并行执行，
+ *  线程数由配置 checkout.threads 决定（默认为 CPU 核数），文件很少时直接在当前线程写。
+ *  所有写入完成之后才删除多余的文件；“untracked file in the way”检查由调用者在此之前完成。
+ *
+ *  @author Lucius
+ */
+class ParallelCheckout {
+    /** 少于这么多文件时不值得启动线程池 */
+    private static final int MIN_PARALLEL_FILES = 16;
+
+    /** 从 STORE 中把 WRITES（文件名 -> blob hash）写到 WORKDIR，然后删除 DELETES 中的文件。
+     *  写出的文件和删除的文件都会同步到 STATCACHE。 */
+    static void run(ObjectStore store, File workDir, Map<String, String> writes,
+                    Collection<String> deletes, int threads, StatCache statCache) {
+        //1.写文件
+        if (threads <= 1 || writes.size() < MIN_PARALLEL_FILES) {
+            for (Map.Entry<String, String> entry : writes.entrySet()) {
+                store.copyBlobTo(entry.getValue(), join(workDir, entry.getKey()));
+            }
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, writes.size()));
+            try {
+                List<Future<?>> tasks = new ArrayList<>(writes.size());
+                for (Map.Entry<String, String> entry : writes.entrySet()) {
+                    File target = join(workDir, entry.getKey());
+                    String blobHash = entry.getValue();
+                    tasks.add(pool.submit(() -> store.copyBlobTo(blobHash, target)));
+                }
+                //等待全部完成，任何一个失败都把异常抛给调用者
+                for (Future<?> task : tasks) {
+                    task.get();
+                }
+            } catch (ExecutionException excp) {
+                if (excp.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) excp.getCause();
+                }
+                throw new IllegalArgumentException(excp.getCause());
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+                throw error("Checkout interrupted.");
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        for (Map.Entry<String, String> entry : writes.entrySet()) {
+            statCache.update(entry.getKey(), entry.getValue());
+        }
+
+        //2.写完之后再删除
+        for (String fileName : deletes) {
+            restrictedDelete(join(workDir, fileName));
+            statCache.remove(fileName);
+        }
+        statCache.save();
+    }
+}
@@ -0,0 +1,131 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** patience diff：diff 命令用它比较两个版本的文件。
+ *
+ *  在两边各只出现一次的行作为锚点，按出现顺序求最长递增子序列，
+ *  锚点之间的空隙递归处理；空隙里再也找不到唯一的公共行时交给 MyersDiff。
+ *  大文件里的函数头、唯一的标识行等会先把问题切成许多小段，
+ *  整体接近线性时间，结果也比纯 Myers 更符合人的阅读习惯。
+ *
+ *  @author Lucius
+ */
+class PatienceDiff {
+    /** 序列 A、B（行编号） */
+    private final int[] a;
+    private final int[] b;
+    /** A 的下标 -> 匹配的 B 的下标 */
+    private final int[] matches;
+
+    private PatienceDiff(int[] a, int[] b) {
+        this.a = a;
+        this.b = b;
+        this.matches = new int[a.length];
+        Arrays.fill(matches, MyersDiff.NONE);
+    }
+
+    /** 返回 A 的每个下标匹配的 B 的下标（没有匹配为 MyersDiff.NONE），匹配在两边都是递增的 */
+    static int[] match(int[] a, int[] b) {
+        PatienceDiff diff = new PatienceDiff(a, b);
+        diff.diff(0, a.length, 0, b.length);
+        return diff.matches;
+    }
+
+    /** 比较 A[ALO, AHI) 与 B[BLO, BHI) */
+    private void diff(int aLo, int aHi, int bLo, int bHi) {
+        //1.公共前缀、后缀直接匹配
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            matches[aLo] = bLo;
+            aLo += 1;
+            bLo += 1;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi -= 1;
+            bHi -= 1;
+            matches[aHi] = bHi;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            return;
+        }
+
+        //2.找锚点，找不到就交给 Myers
+        List<int[]> anchors = anchors(aLo, aHi, bLo, bHi);
+        if (anchors.isEmpty()) {
+            MyersDiff.match(a, aLo, aHi, b, bLo, bHi, matches);
+            return;
+        }
+
+        //3.锚点之间的空隙递归处理
+        int aPrev = aLo;
+        int bPrev = bLo;
+        for (int[] anchor : anchors) {
+            diff(aPrev, anchor[0], bPrev, anchor[1]);
+            matches[anchor[0]] = anchor[1];
+            aPrev = anchor[0] + 1;
+            bPrev = anchor[1] + 1;
+        }
+        diff(aPrev, aHi, bPrev, bHi);
+    }
+
+    /** 在 A[ALO, AHI) 与 B[BLO, BHI) 中各只出现一次的行里，
+     *  取 B 下标递增的最长一串，返回 {a 下标, b 下标} 列表（按 a 下标升序） */
+    private List<int[]> anchors(int aLo, int aHi, int bLo, int bHi) {
+        //1.统计出现次数：行编号 -> {A 中次数, A 中位置, B 中次数, B 中位置}
+        Map<Integer, int[]> counts = new HashMap<>();
+        for (int i = aLo; i < aHi; i += 1) {
+            int[] c = counts.computeIfAbsent(a[i], k -> new int[4]);
+            c[0] += 1;
+            c[1] = i;
+        }
+        for (int j = bLo; j < bHi; j += 1) {
+            int[] c = counts.get(b[j]);
+            if (c != null) {
+                c[2] += 1;
+                c[3] = j;
+            }
+        }
+        List<int[]> unique = new ArrayList<>();
+        for (int i = aLo; i < aHi; i += 1) {
+            int[] c = counts.get(a[i]);
+            if (c[0] == 1 && c[2] == 1) {
+                unique.add(new int[] {i, c[3]});
+            }
+        }
+        if (unique.isEmpty()) {
+            return unique;
+        }
+
+        //2.patience sorting 求 B 下标的最长递增子序列
+        int[] tails = new int[unique.size()];
+        int[] previous = new int[unique.size()];
+        int piles = 0;
+        for (int k = 0; k < unique.size(); k += 1) {
+            int bIndex = unique.get(k)[1];
+            int lo = 0;
+            int hi = piles;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (unique.get(tails[mid])[1] < bIndex) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            previous[k] = lo > 0 ? tails[lo - 1] : -1;
+            tails[lo] = k;
+            if (lo == piles) {
+                piles += 1;
+            }
+        }
+        int[][] result = new int[piles][];
+        for (int k = tails[piles - 1], p = piles - 1; k >= 0; k = previous[k], p -= 1) {
+            result[p] = unique.get(k);
+        }
+        return Arrays.asList(result);
+    }
+}
@@ -0,0 +1,149 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/** push / fetch 的对象传输：在同一台机器上的两个对象库之间只复制对方缺少的对象。
+ *
+ *  从要传输的分支头出发沿父节点往回走，遇到目标已有的 commit 就停下（它的祖先目标也都有），
+ *  得到目标缺少的 commit；再从这些 commit 的根 tree 往下走，目标已有的子 tree 整个跳过，
+ *  只收集目标缺少的 tree 和 blob。传输量因此只与新对象的个数成正比，与历史长短无关。
+ *  复制顺序为块、blob、tree、commit（父 commit 在前），中途失败时目标里不会出现引用了缺失对象的对象；
+ *  loose 对象直接硬链接，见 ObjectStore.copyFrom。bundle 也用 missingObjects 收集要写出的对象。
+ *
+ *  @author Lucius
+ */
+class RemoteSync {
+    private RemoteSync() {
+    }
+
+    /** 把 HEAD 及其祖先中 TO 缺少的对象从 FROM 复制到 TO，返回复制的 commit（父 commit 在前） */
+    static List<String> copyMissing(ObjectStore from, ObjectStore to, String head) {
+        List<String> commits = new ArrayList<>();
+        for (String id : missingObjects(from, head, to::contains, true, commits)) {
+            to.copyFrom(from, id);
+        }
+        return commits;
+    }
+
+    /** HEAD 及其祖先引用的对象中 KNOWN 不认识的部分（从 FROM 读取），按（WITHCHUNKS 时包括分块 blob 的块）块、
+     *  blob、tree、commit（父 commit 在前）的顺序排列；其中的 commit 按同样的顺序另外放进 COMMITS */
+    static List<String> missingObjects(ObjectStore from, String head, Predicate<String> known,
+                                       boolean withChunks, List<String> commits) {
+        //1.沿父节点找出不认识的 commit
+        Map<String, Commit> missing = new HashMap<>();
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(head);
+        while (!stack.isEmpty()) {
+            String id = stack.pop();
+            if (missing.containsKey(id) || known.test(id)) {
+                continue;
+            }
+            Commit commit = BinaryCodec.decodeCommit(from.read(id, ObjectStore.TYPE_COMMIT));
+            missing.put(id, commit);
+            for (String parent : commit.getParents()) {
+                stack.push(parent);
+            }
+        }
+
+        //2.这些 commit 引用的 tree 和 blob 中不认识的部分
+        Set<String> trees = new LinkedHashSet<>();
+        Set<String> blobs = new LinkedHashSet<>();
+        for (Commit commit : missing.values()) {
+            if (commit.getTree() != null) {
+                Tree.walk(from, commit.getTree(), tree -> !known.test(tree) && trees.add(tree), blob -> {
+                    if (!known.test(blob)) {
+                        blobs.add(blob);
+                    }
+                });
+            } else {
+                for (String blob : commit.getTrackedFiles().values()) {
+                    if (!known.test(blob)) {
+                        blobs.add(blob);
+                    }
+                }
+            }
+        }
+
+        //3.分块存储的 blob 引用的块（bundle 写出完整内容，不需要块）
+        Set<String> chunks = new LinkedHashSet<>();
+        if (withChunks) {
+            for (String blob : blobs) {
+                for (String chunk : from.chunksOf(blob)) {
+                    if (!known.test(chunk)) {
+                        chunks.add(chunk);
+                    }
+                }
+            }
+        }
+
+        //4.被引用的对象在前，commit 按父节点在前的顺序排在最后
+        commits.addAll(parentsFirst(missing));
+        List<String> result = new ArrayList<>(chunks.size() + blobs.size() + trees.size() + commits.size());
+        result.addAll(chunks);
+        result.addAll(blobs);
+        result.addAll(trees);
+        result.addAll(commits);
+        return result;
+    }
+
+    /** 把新复制进 GITLETDIR 的 COMMITS（父 commit 在前）追加到那里已有的 commit-graph 和 message 索引；
+     *  索引文件不存在时什么也不做，那边用到时会自己重建 */
+    static void appendIndexes(File gitletDir, ObjectStore store, Config config, List<String> commits) {
+        File graphFile = new File(gitletDir, Repository.COMMIT_GRAPH_FILE.getName());
+        CommitGraph graph = graphFile.isFile() ? CommitGraph.load(graphFile) : null;
+        MessageIndex index = MessageIndex.open(new File(gitletDir, Repository.MESSAGE_INDEX_FILE.getName()),
+                new File(gitletDir, Repository.MESSAGE_TOKENS_FILE.getName()),
+                config.getBoolean("core.messageTokens", false));
+        boolean hasIndex = index.exists();
+        for (String id : commits) {
+            Commit commit = BinaryCodec.decodeCommit(store.read(id, ObjectStore.TYPE_COMMIT));
+            if (hasIndex) {
+                index.add(id, commit.getMessage());
+            }
+            //父节点不在图中的（那边的图本来就不完整）留给那边按需补齐
+            if (graph != null && commit.getParents().stream().allMatch(graph::contains)) {
+                graph.add(id, commit.getParents(), commit.getTimeStamp().getTime());
+            }
+        }
+    }
+
+    /** COMMITS 中的 commit 排成父节点在前的顺序 */
+    private static List<String> parentsFirst(Map<String, Commit> commits) {
+        List<String> order = new ArrayList<>(commits.size());
+        Set<String> done = new HashSet<>();
+        for (String start : commits.keySet()) {
+            Deque<String> stack = new ArrayDeque<>();
+            stack.push(start);
+            while (!stack.isEmpty()) {
+                String id = stack.peek();
+                if (done.contains(id)) {
+                    stack.pop();
+                    continue;
+                }
+                boolean parentsReady = true;
+                for (String parent : commits.get(id).getParents()) {
+                    if (commits.containsKey(parent) && !done.contains(parent)) {
+                        stack.push(parent);
+                        parentsReady = false;
+                    }
+                }
+                if (parentsReady) {
+                    done.add(id);
+                    order.add(id);
+                    stack.pop();
+                }
+            }
+        }
+        return order;
+    }
+}
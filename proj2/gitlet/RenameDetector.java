@@ -0,0 +1,239 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** 改名检测：在一组删除的文件和一组新增的文件之间找出哪些其实是改名（可能顺带改了内容）。
+ *
+ *  先按 blob hash 做精确匹配：新增文件按 hash 建反查表，删除的文件直接查表，同名（不同目录）的优先。
+ *  剩下的文件按行取 MinHash 签名：每一行哈希成一个元素，NUM_HASHES 个哈希函数各取最小值，
+ *  两个签名中相同分量的比例就是两个文件行集合 Jaccard 相似度的估计。
+ *  签名分成 BANDS 段做局部敏感哈希，至少有一段完全相同的两个文件才作为候选，
+ *  不需要两两比较文件内容，代价与文件个数近似线性。
+ *  候选按相似度从高到低贪心配对，每个文件最多配对一次，相似度低于阈值的不算改名。
+ *
+ *  @author Lucius
+ */
+class RenameDetector {
+    /** MinHash 签名长度 */
+    private static final int NUM_HASHES = 64;
+    /** 局部敏感哈希的段数，每段 NUM_HASHES / BANDS 个分量 */
+    private static final int BANDS = 32;
+    /** 超过这个大小的文件不参与相似度匹配（只做精确匹配） */
+    private static final int MAX_SIMILARITY_SIZE = 8 << 20;
+    /** 各个哈希函数的种子 */
+    private static final long[] SEEDS = new long[NUM_HASHES];
+
+    static {
+        long seed = 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < NUM_HASHES; i += 1) {
+            seed = mix(seed + i);
+            SEEDS[i] = seed;
+        }
+    }
+
+    private RenameDetector() {
+    }
+
+    /** DELETED 与 ADDED（文件名 -> blob hash）之间的改名：旧文件名 -> 新文件名。
+     *  相似度（百分比）不低于 MINSIMILARITY 的才算改名，MINSIMILARITY 超过 100 时只做精确匹配 */
+    static Map<String, String> detect(ObjectStore store, Map<String, String> deleted,
+                                      Map<String, String> added, int minSimilarity) {
+        Map<String, String> renames = new TreeMap<>();
+        if (deleted.isEmpty() || added.isEmpty()) {
+            return renames;
+        }
+
+        //1.精确匹配
+        Map<String, List<String>> addedByHash = new HashMap<>();
+        for (String fileName : new TreeSet<>(added.keySet())) {
+            addedByHash.computeIfAbsent(added.get(fileName), k -> new ArrayList<>()).add(fileName);
+        }
+        Set<String> used = new HashSet<>();
+        for (String oldName : new TreeSet<>(deleted.keySet())) {
+            List<String> candidates = addedByHash.get(deleted.get(oldName));
+            if (candidates == null) {
+                continue;
+            }
+            String best = null;
+            for (String newName : candidates) {
+                if (used.contains(newName)) {
+                    continue;
+                }
+                if (best == null) {
+                    best = newName;
+                }
+                if (baseName(newName).equals(baseName(oldName))) {
+                    best = newName;
+                    break;
+                }
+            }
+            if (best != null) {
+                used.add(best);
+                renames.put(oldName, best);
+            }
+        }
+        if (minSimilarity > 100) {
+            return renames;
+        }
+
+        //2.剩下的文件计算 MinHash 签名
+        Map<String, long[]> oldSignatures = signatures(store, deleted, renames.keySet());
+        Map<String, long[]> newSignatures = signatures(store, added, used);
+        if (oldSignatures.isEmpty() || newSignatures.isEmpty()) {
+            return renames;
+        }
+
+        //3.每段签名相同的放进同一个桶，同桶的新旧文件是候选
+        int rows = NUM_HASHES / BANDS;
+        Map<Long, List<String>> buckets = new HashMap<>();
+        for (Map.Entry<String, long[]> entry : newSignatures.entrySet()) {
+            for (int band = 0; band < BANDS; band += 1) {
+                buckets.computeIfAbsent(bandKey(entry.getValue(), band, rows), k -> new ArrayList<>())
+                       .add(entry.getKey());
+            }
+        }
+        List<Candidate> candidates = new ArrayList<>();
+        for (Map.Entry<String, long[]> entry : oldSignatures.entrySet()) {
+            Set<String> seen = new HashSet<>();
+            for (int band = 0; band < BANDS; band += 1) {
+                List<String> bucket = buckets.get(bandKey(entry.getValue(), band, rows));
+                if (bucket == null) {
+                    continue;
+                }
+                for (String newName : bucket) {
+                    if (!seen.add(newName)) {
+                        continue;
+                    }
+                    int similarity = similarity(entry.getValue(), newSignatures.get(newName));
+                    if (similarity >= minSimilarity) {
+                        candidates.add(new Candidate(entry.getKey(), newName, similarity));
+                    }
+                }
+            }
+        }
+
+        //4.按相似度从高到低贪心配对
+        candidates.sort((a, b) -> a.similarity != b.similarity
+                ? Integer.compare(b.similarity, a.similarity)
+                : (a.oldName + "\0" + a.newName).compareTo(b.oldName + "\0" + b.newName));
+        for (Candidate candidate : candidates) {
+            if (!renames.containsKey(candidate.oldName) && !used.contains(candidate.newName)) {
+                renames.put(candidate.oldName, candidate.newName);
+                used.add(candidate.newName);
+            }
+        }
+        return renames;
+    }
+
+    /** FILES 中不在 EXCLUDED 里的文件的 MinHash 签名，空文件和太大的文件跳过 */
+    private static Map<String, long[]> signatures(ObjectStore store, Map<String, String> files,
+                                                  Set<String> excluded) {
+        Map<String, long[]> result = new HashMap<>();
+        Map<String, long[]> byHash = new HashMap<>();
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            if (excluded.contains(entry.getKey())) {
+                continue;
+            }
+            long[] signature = byHash.get(entry.getValue());
+            if (signature == null) {
+                byte[] content = store.read(entry.getValue(), ObjectStore.TYPE_BLOB);
+                if (content.length == 0 || content.length > MAX_SIMILARITY_SIZE) {
+                    continue;
+                }
+                signature = signature(content);
+                byHash.put(entry.getValue(), signature);
+            }
+            result.put(entry.getKey(), signature);
+        }
+        return result;
+    }
+
+    /** CONTENT 按行（不含行尾的 \r\n）取的 MinHash 签名 */
+    private static long[] signature(byte[] content) {
+        long[] signature = new long[NUM_HASHES];
+        Arrays.fill(signature, Long.MAX_VALUE);
+        int start = 0;
+        while (start < content.length) {
+            int end = start;
+            while (end < content.length && content[end] != '\n') {
+                end += 1;
+            }
+            int lineEnd = end > start && content[end - 1] == '\r' ? end - 1 : end;
+            long line = lineHash(content, start, lineEnd);
+            for (int i = 0; i < NUM_HASHES; i += 1) {
+                long h = mix(line ^ SEEDS[i]);
+                if (h < signature[i]) {
+                    signature[i] = h;
+                }
+            }
+            start = end + 1;
+        }
+        return signature;
+    }
+
+    /** 两个签名的相似度估计（百分比） */
+    private static int similarity(long[] a, long[] b) {
+        int same = 0;
+        for (int i = 0; i < NUM_HASHES; i += 1) {
+            if (a[i] == b[i]) {
+                same += 1;
+            }
+        }
+        return same * 100 / NUM_HASHES;
+    }
+
+    /** 签名 SIGNATURE 第 BAND 段（每段 ROWS 个分量）的桶键，混入段号，不同段之间不会互相匹配 */
+    private static long bandKey(long[] signature, int band, int rows) {
+        long key = band;
+        for (int i = band * rows; i < (band + 1) * rows; i += 1) {
+            key = mix(key * 31 + signature[i]);
+        }
+        return key;
+    }
+
+    /** CONTENT[START, END) 的 64 位 FNV-1a 哈希 */
+    private static long lineHash(byte[] content, int start, int end) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i += 1) {
+            h ^= content[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /** 64 位混合函数（SplitMix64 的最后一步） */
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+
+    /** 文件名去掉目录部分 */
+    private static String baseName(String fileName) {
+        return fileName.substring(fileName.lastIndexOf('/') + 1);
+    }
+
+    /** 一对可能的改名 */
+    private static class Candidate {
+        /** 旧文件名 */
+        final String oldName;
+        /** 新文件名 */
+        final String newName;
+        /** 相似度（百分比） */
+        final int similarity;
+
+        Candidate(String oldName, String newName, int similarity) {
+            this.oldName = oldName;
+            this.newName = newName;
+            this.similarity = similarity;
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.zip.Deflater;
 
 import static gitlet.Utils.*;
 
@@ -34,7 +38,90 @@ public class Repository {
     public static final File HEAD_FILE = new File(GITLET_DIR, "HEAD");
 
     /** StagingArea 文件，存放暂存区对象 */
-    private static File STAGING_FILE = join(GITLET_DIR, "staging");//创建路径
+    public static final File STAGING_FILE = join(GITLET_DIR, "staging");//创建路径
+
+    /** format 文件，记录仓库的存储格式版本 */
+    public static final File FORMAT_FILE = join(GITLET_DIR, "format");
+
+    /** index 文件，缓存工作区文件的 stat 信息和 hash，见 StatCache */
+    public static final File INDEX_FILE = join(GITLET_DIR, "index");
+
+    /** config 文件，仓库配置，见 Config */
+    public static final File CONFIG_FILE = join(GITLET_DIR, "config");
+
+    /** 当前存储格式版本：对象带类型头，commit 和暂存区使用 BinaryCodec 编码 */
+    public static final int REPOSITORY_FORMAT = 2;
+
+    /** commit-graph 文件，缓存所有 commit 的父子关系和 generation number */
+    public static final File COMMIT_GRAPH_FILE = join(GITLET_DIR, "commit-graph");
+
+    /** 改名检测默认的相似度阈值（百分比） */
+    private static final int DEFAULT_RENAME_SIMILARITY = 50;
+
+    /** gc 默认的宽限期（秒）：两周内写入的不可达对象不删除 */
+    private static final long DEFAULT_GC_GRACE_SECONDS = 14L * 24 * 60 * 60;
+
+    /** commit message 索引文件 */
+    public static final File MESSAGE_INDEX_FILE = join(GITLET_DIR, "message-index");
+
+    /** commit message 单词索引文件（可选） */
+    public static final File MESSAGE_TOKENS_FILE = join(GITLET_DIR, "message-tokens");
+
+    /** 仓库配置 */
+    private static final Config CONFIG = Config.load(CONFIG_FILE);
+
+    /** 对象库，所有 commit 和 blob 的读写都经过它（loose 文件或 pack），
+     *  压缩级别、差量链长度等取自仓库配置 */
+    private static final ObjectStore OBJECT_STORE = new ObjectStore(OBJECTS_DIR, CONFIG);
+
+    /** 内存中的 commit-graph，第一次用到时才从文件加载 */
+    private static CommitGraph commitGraph;
+
+    /** commit message 索引，第一次用到时才打开 */
+    private static MessageIndex messageIndex;
+
+    /** 内存中的 stat 缓存，第一次用到时才从文件加载 */
+    private static StatCache statCache;
+
+    /** version 文件，每个修改仓库的命令结束时写入一个新的随机值，
+     *  常驻进程（daemon）据此判断内存中的缓存是否已被其他进程弄旧 */
+    public static final File VERSION_FILE = join(GITLET_DIR, "version");
+
+    /** daemon.port 文件，记录正在运行的 daemon 监听的端口 */
+    public static final File DAEMON_PORT_FILE = join(GITLET_DIR, "daemon.port");
+
+    /** daemon.token 文件（只有属主可读写），记录连接 daemon 时必须先发送的口令 */
+    public static final File DAEMON_TOKEN_FILE = join(GITLET_DIR, "daemon.token");
+
+    /** 内存中的暂存区，第一次用到时才从文件加载，保存时同时更新 */
+    private static StagingArea stagingCache;
+
+    /** commit 缓存默认最多保留的 commit 个数 */
+    private static final int DEFAULT_COMMIT_CACHE_SIZE = 4096;
+
+    /** 已解析的 commit，按 hash 缓存（commit 对象创建后不再修改），
+     *  大小由配置 core.commitCacheSize 决定 */
+    private static final CommitCache COMMIT_CACHE =
+            new CommitCache(CONFIG.getInt("core.commitCacheSize", DEFAULT_COMMIT_CACHE_SIZE));
+
+    /** 本进程最后一次看到（或写入）的仓库版本 */
+    private static String seenVersion;
+
+    /** lock 文件，修改仓库的命令执行期间持有它上面的文件锁；
+     *  锁由操作系统维护，进程崩溃时自动释放，不会留下需要手动删除的锁 */
+    public static final File LOCK_FILE = join(GITLET_DIR, "lock");
+
+    /** 默认等待写锁的时间（毫秒） */
+    private static final long DEFAULT_LOCK_TIMEOUT_MS = 10_000;
+
+    /** 没拿到写锁时的重试间隔（毫秒） */
+    private static final long LOCK_RETRY_MS = 20;
+
+    /** 持有写锁的文件通道，没有持有时为 null */
+    private static FileChannel lockChannel;
+
+    /** remotes 目录，每个远程仓库一个文件，文件名为远程仓库名，内容为其 .gitlet 目录的路径 */
+    public static final File REMOTES_DIR = join(GITLET_DIR, "remotes");
 
     /** Initialize a new repository in the current working directory. */
     //init命令
@@ -54,94 +141,95 @@ public class Repository {
         OBJECTS_DIR.mkdir();
         REFS_DIR.mkdir();
         HEADS_DIR.mkdir();
+        writeContentsAtomic(FORMAT_FILE, GITLET_DIR, Integer.toString(REPOSITORY_FORMAT));
 
         //3.创建 initial commit
         Commit initCommit = new Commit("initial commit", new ArrayList<>(), new HashMap<>(), new Date());
 
         //4.将initCommit序列化并保存
-        saveCommit(initCommit);
+        String initCommitHash = saveCommit(initCommit);
 
         //5.创建master分支
-        String initCommitHash = sha1(serialize(initCommit));
         File masterBranchFile = join(HEADS_DIR, "master");
-        writeContents(masterBranchFile, initCommitHash);
+        writeContentsAtomic(masterBranchFile, GITLET_DIR, initCommitHash);
 
         //6.将HEAD指向master分支
         /**此处的 Utils 是 gitlet 包里的，并非 java 自带的*/
-        writeContents(HEAD_FILE, "ref: refs/heads/master");
+        writeContentsAtomic(HEAD_FILE, GITLET_DIR, "ref: refs/heads/master");
 
         //7.创建空暂存区并持久化写入磁盘
         StagingArea stagingArea = new StagingArea();//创建对象
         saveStagingArea(stagingArea);//写入磁盘
     }
 
-    //add命令
-    public static void add(String fileName) {
+    //add命令，可以一次添加多个路径，目录（包括 . ）递归添加其中的所有文件
+    //文件的hash由线程池并行计算，暂存区在最后只读写一次
+    public static void add(List<String> paths) {
         //1.检查有无初始化
         if (!GITLET_DIR.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException("Not in an initialized Gitlet directory.");
         }
-        //2.定位文件
-        File fileToAdd = new File(CWD, fileName);
 
-        //3.检查文件存在与否
-        if (!fileToAdd.exists()) {
-            System.out.println("File does not exist.");
-            System.exit(0);
+        //2.展开路径，检查文件存在与否
+        Set<String> fileSet = new TreeSet<>();
+        for (String path : paths) {
+            List<String> files = ParallelAdd.listFiles(CWD, path);
+            if (files == null) {
+                throw new GitletException("File does not exist.");
+            }
+            fileSet.addAll(files);
         }
+        List<String> fileNames = new ArrayList<>(fileSet);
 
-        //4.读取文件并序列化，计算哈希值
-        byte[] fileContent = readContents(fileToAdd); //序列化对象
-        String fileHash = sha1(fileContent); //文件哈希值
+        //3.计算哈希值：stat信息没变且blob已在对象库中时直接用stat缓存里的哈希，不必读文件
+        //  否则流式写入blob：边算SHA-1边复制到临时文件，再原子重命名为其哈希
+        //  内存占用与文件大小无关；blob已存在（例如文件未修改）时临时文件直接丢弃
+        int threads = CONFIG.getInt("add.threads", Runtime.getRuntime().availableProcessors());
+        Map<String, String> fileHashes = ParallelAdd.hashAll(OBJECT_STORE, CWD, fileNames, threads,
+                                                             getStatCache());
+        saveStatCache();
 
-        //5.读取暂存区对象
+        //4.读取暂存区对象
         StagingArea stagingArea = readStagingArea();
 
-        //6.加载HEAD commit，用于判断文件相对于最新commit有无修改
+        //5.加载HEAD commit，用于判断文件相对于最新commit有无修改
         Commit curCommit = getHeadCommit();
         Map<String, String> trackedFiles = curCommit.getTrackedFiles(); //取得当前commit记录blobs的哈希表
 
-        //7.判断该文件有无被rm
-        if (stagingArea.getFieldToRemove().containsKey(fileName)) {
-            stagingArea.getFieldToRemove().remove(fileName); // 将文件从RM哈希表中移出
-            saveStagingArea(stagingArea);//保存缓存区
-            return;
-        }
+        for (String fileName : fileNames) {
+            String fileHash = fileHashes.get(fileName);
 
-        //8.判断该文件有无修改
-        if (trackedFiles.containsKey(fileName) && trackedFiles.get(fileName).equals(fileHash)) {
-            //上一层if返回true，说明文件没有修改，若该文件已进入add缓存区，移除它
-            if (stagingArea.getFieldToAdd().containsKey(fileName)) {
-                stagingArea.getFieldToAdd().remove(fileName); //移除此文件
+            //6.判断该文件有无被rm
+            if (stagingArea.getFieldToRemove().containsKey(fileName)) {
+                stagingArea.getFieldToRemove().remove(fileName); // 将文件从RM哈希表中移出
+                continue;
             }
-            saveStagingArea(stagingArea);//保存
-            return;
-        }
 
-        //9.文件是新文件或被修改
-        File blobFile = new File(OBJECTS_DIR, fileHash); //文件存储路径
-        writeContents(blobFile, fileContent); //将序列化对象持续化为文件
+            //7.判断该文件有无修改
+            if (trackedFiles.containsKey(fileName) && trackedFiles.get(fileName).equals(fileHash)) {
+                //上一层if返回true，说明文件没有修改，若该文件已进入add缓存区，移除它
+                stagingArea.getFieldToAdd().remove(fileName); //移除此文件
+                continue;
+            }
 
-        //10.更新缓存区
-        stagingArea.add(fileName, fileHash);
+            //8.文件是新文件或被修改，blob已在第3步写入对象库，更新缓存区
+            stagingArea.add(fileName, fileHash);
+        }
 
-        //11.保存
-        writeObject(STAGING_FILE, stagingArea);
+        //9.所有文件处理完后保存一次
+        saveStagingArea(stagingArea);
     }
 
     public static void commit(String message) {
         //1.检查message是否为空
         if (message == null || message.isEmpty()) {
-            System.out.println("Please enter a commit message");
-            System.exit(0);
+            throw new GitletException("Please enter a commit message");
         }
 
         //2.检查缓存区是否为空
-        StagingArea stageArea = readObject(STAGING_FILE, StagingArea.class);
+        StagingArea stageArea = readStagingArea();
         if (stageArea.getFieldToAdd().isEmpty() && stageArea.getFieldToRemove().isEmpty()) {
-            System.out.println("No changes add to the commit");
-            System.exit(0);
+            throw new GitletException("No changes add to the commit");
         }
 
         //3.获取父commit
@@ -151,29 +239,14 @@ public class Repository {
         List<String> parentList = new ArrayList<>();
         parentList.add(parentCommitHash);
 
-        //4.计算新的Commit文件跟踪列表
-        Map<String, String> newTrackedFiles = new HashMap<>(parentCommit.getTrackedFiles()); //先传入父commit的文件跟踪列表
-
-        //5.处理暂存区中待添加的文件
-        for (Map.Entry<String, String> entry : stageArea.getFieldToAdd().entrySet()) {
-            String fileName = entry.getKey();
-            String fileHash = entry.getValue();
-            newTrackedFiles.put(fileName, fileHash);
-        }
-
-        //6.处理暂存区中待删除文件
-        for (String fileName : stageArea.getFieldToRemove().keySet()) {
-            newTrackedFiles.remove(fileName);
-        }
-
-        //7.创建新的的commit对象
-        Commit newCommit = new Commit(message, parentList, newTrackedFiles, new Date());
+        //4.在父commit的根tree上应用暂存区中待添加、待删除的文件，创建新的commit对象
+        Commit newCommit = commitFromStaging(message, parentList, parentCommit, stageArea);
 
         //9.保存新commit对象
-        saveCommit(newCommit);
+        String newCommitHash = saveCommit(newCommit);
 
         //10.更新HEAD指针
-        updateCurBranchHead(sha1(serialize(newCommit)));
+        updateCurBranchHead(newCommitHash);
 
         //11.清空缓存区
         stageArea.clear();
@@ -183,8 +256,7 @@ public class Repository {
     public static void rm(String fileName) {
         //1.检查初始化
         if (!GITLET_DIR.exists()) {
-            System.out.println("Not in a initialized Gitlet directory");
-            System.exit(0);
+            throw new GitletException("Not in a initialized Gitlet directory");
         }
 
         //2.加载缓存区和最新commit对象
@@ -213,121 +285,95 @@ public class Repository {
             if (fileToRemove.exists()) {
                 restrictedDelete(fileToRemove);
             }
+            getStatCache().remove(fileName);
+            saveStatCache();
         }
 
         //7.更新缓存区
         saveStagingArea(stagingArea);
     }
 
-    public static void log() {
+    public static void log(String... options) {
         //1.检查初始化
         if (!GITLET_DIR.exists()) {
-            System.out.println("Not in a initialized directory");
-            System.exit(0);
+            throw new GitletException("Not in a initialized directory");
+        }
+
+        LogPrinter printer = LogPrinter.parse(options);
+        if (printer == null) {
+            throw new GitletException("Incorrect operands");
         }
 
         //2.获取HEAD commit 的hash，不要获取对象，用哈希当索引，更新哈希就可以更新commit而不用再创建一次commit对象
         String curCommitHash = getHeadCommitHash();
+        CommitGraph graph = ensureInGraph(curCommitHash);
 
-        //3.遍历，直到init commit
-        while (curCommitHash != null) {
-            Commit curCommit = readCommit(curCommitHash);
-
-            //打印消息
-            System.out.println("===");
-            System.out.println("commit " + curCommitHash);
-            SimpleDateFormat dateFormat = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", Locale.US);
-
-            Date commitTimeStamp = curCommit.getTimeStamp();
-            String formattedDate = dateFormat.format(commitTimeStamp);
-            System.out.println("Date: " + formattedDate);
-
-            System.out.println(curCommit.getMessage());
-            System.out.println();
-
-            //移动到父commit
-            if (curCommit.getParents() != null && !curCommit.getParents().isEmpty()) {
-                curCommitHash = curCommit.getParents().get(0);
-            } else {
-                curCommitHash = null; // 到达 initial commit，它的 parent 列表是空的，循环结束
-            }
+        //3.遍历，直到init commit；输出够了或早于--since时提前停下（时间戳直接查commit-graph）
+        while (curCommitHash != null && !printer.isFull()
+               && !printer.isTooOld(graph.timeStamp(curCommitHash))) {
+            printer.print(curCommitHash, readCommit(curCommitHash));
 
+            //移动到父commit，直接查commit-graph；到达 initial commit 时为null，循环结束
+            curCommitHash = graph.firstParent(curCommitHash);
         }
+        printer.flush();
     }
 
-    public static void globalLog() {
+    public static void globalLog(String... options) {
         //1.自检
         if (!GITLET_DIR.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException("Not in an initialized Gitlet directory.");
         }
 
-        //2.获取objects目录下所以文件名
-        List<String> objectHashes = plainFilenamesIn(OBJECTS_DIR);
-        if (objectHashes == null) {
-            return;
+        LogPrinter printer = LogPrinter.parse(options);
+        if (printer == null) {
+            throw new GitletException("Incorrect operands");
         }
 
-        //3.遍历Object文件，判断是commit还是blob
-        for (String commitHash : objectHashes) {
-            File objectFile = join(OBJECTS_DIR, commitHash);
-
-            try {
-                Commit curCommit = readObject(objectFile, Commit.class);
-
-                // --- 开始修改 ---
-                System.out.println("==="); // 修复问题2
-                System.out.println("commit " + commitHash); // 修复问题3
-
-                SimpleDateFormat dateFormat = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", Locale.US);
-                Date commitTimeStamp = curCommit.getTimeStamp();
-                String formattedDate = dateFormat.format(commitTimeStamp);
-                System.out.println("Date: " + formattedDate);
-
-                System.out.println(curCommit.getMessage());
-                System.out.println();
-                // --- 结束修改 ---
+        //2.获取对象库中所有commit的hash（按类型头过滤，不会读取blob）
+        List<String> commitHashes = OBJECT_STORE.listIds(ObjectStore.TYPE_COMMIT);
 
-            } catch (Exception e) { // 最好捕获更通用的 Exception，因为反序列化可能抛出不止一种错误
-                // 不是Commit就跳过
+        //3.遍历commit，输出够了就停下
+        for (String commitHash : commitHashes) {
+            if (printer.isFull()) {
+                break;
             }
+            printer.print(commitHash, readCommit(commitHash));
         }
+        printer.flush();
     }
 
-    public static void find(String message) {
+    //find命令，WORDSEARCH 为 false 时查找message恰好为 MESSAGE 的commit，
+    //为 true 时（find --word）查找message中含有单词 MESSAGE 的commit
+    public static void find(String message, boolean wordSearch) {
         //1.自检
         if (!GITLET_DIR.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException("Not in an initialized Gitlet directory.");
         }
 
-        //2.获取objects目录下所以文件名
-        List<String> objectHashes = plainFilenamesIn(OBJECTS_DIR);
-        if (objectHashes == null) {
-            System.out.println("Found no commits with that message.");
-            return;
-        }
-
-        //3.遍历commit
-        boolean findMatch = false;
-        for (String commitHash : objectHashes) {
-            File objectFile = join(OBJECTS_DIR, commitHash);
-
-            try {
-                Commit curCommit = readObject(objectFile, Commit.class);
-
-                //检查message信息是否一致
-                if (curCommit.getMessage().equals(message)) {
-                    System.out.println(commitHash);
-                    findMatch = true;
+        //2.查message索引，不需要读取任何commit
+        MessageIndex index = getMessageIndex();
+        List<String> matches;
+        if (!wordSearch) {
+            matches = index.find(message);
+        } else {
+            //单词索引只给出候选（hash可能冲突），再核对一次message；没有单词索引时逐个检查所有commit
+            String word = message.toLowerCase(Locale.ROOT);
+            List<String> candidates = index.hasTokens()
+                    ? index.findWord(word) : OBJECT_STORE.listIds(ObjectStore.TYPE_COMMIT);
+            matches = new ArrayList<>();
+            for (String commitHash : candidates) {
+                if (MessageIndex.tokens(readCommit(commitHash).getMessage()).contains(word)) {
+                    matches.add(commitHash);
                 }
-            } catch (IllegalArgumentException e) {
-                //忽略blob
             }
         }
 
-        //4.遍历结束后，若未找到
-        if (!findMatch) {
+        //3.输出
+        for (String commitHash : matches) {
+            System.out.println(commitHash);
+        }
+        if (matches.isEmpty()) {
             System.out.println("Found no commits with that message.");
         }
     }
@@ -335,18 +381,15 @@ public class Repository {
     public static void status() {
         //1.检查初始化
         if (!GITLET_DIR.exists()) {
-            System.out.println("Not in a initialized Gitlet directory");
-            System.exit(0);
+            throw new GitletException("Not in a initialized Gitlet directory");
         }
 
         //2.打印branches
         System.out.println("=== Branches ===");
         //当前分支
         String curBranch = readContentsAsString(HEAD_FILE).replace("ref: refs/heads/", "");
-        //所以分支
-        List<String> allBranches = plainFilenamesIn(HEADS_DIR);
-        //排序打印 ？？
-        Collections.sort(allBranches);
+        //所以分支（已排序）
+        List<String> allBranches = branchNames();
         for (String branch : allBranches) {
             if (branch.equals(curBranch)) {
                 System.out.println("*" + branch);
@@ -359,16 +402,28 @@ public class Repository {
         //3.打印add暂存区
         System.out.println("=== Staged Files ===");
         StagingArea stagingArea = readStagingArea();
+        //开启改名检测（配置core.renames）时，暂存删除的文件和暂存新增的文件配成对的显示为 旧名 -> 新名
+        Map<String, String> renamedFrom = new HashMap<>();
+        if (CONFIG.getBoolean("core.renames", false)) {
+            for (Map.Entry<String, String> rename : stagedRenames(stagingArea).entrySet()) {
+                renamedFrom.put(rename.getValue(), rename.getKey());
+            }
+        }
         List<String> stagedFiles = new ArrayList<>(stagingArea.getFieldToAdd().keySet());
         Collections.sort(stagedFiles);
         for (String fileName : stagedFiles) {
-            System.out.println(fileName);
+            if (renamedFrom.containsKey(fileName)) {
+                System.out.println(renamedFrom.get(fileName) + " -> " + fileName);
+            } else {
+                System.out.println(fileName);
+            }
         }
         System.out.println();
 
-        //4.打印rm缓存区
+        //4.打印rm缓存区（改名的旧名字已经在上面显示）
         System.out.println("=== Removed Files ===");
         List<String> removedFiles = new ArrayList<>(stagingArea.getFieldToRemove().keySet());
+        removedFiles.removeAll(renamedFrom.values());
         Collections.sort(removedFiles);
         for (String fileName : removedFiles) {
             System.out.println(fileName);
@@ -382,7 +437,7 @@ public class Repository {
         Map<String, String> trackedFiles = getHeadCommit().getTrackedFiles();
         Map<String, String> stagedAddFiles = stagingArea.getFieldToAdd();
         Set<String> stagedRemoveFiles = stagingArea.getFieldToRemove().keySet();
-        List<String> cwdFileNames = plainFilenamesIn(CWD);
+        List<String> cwdFileNames = workingFileNames();
 
         // 如果工作目录为空，则设为空列表，避免 NullPointerException
         if (cwdFileNames == null) {
@@ -402,7 +457,7 @@ public class Repository {
             String trackedHash = trackedFiles.get(fileName);
 
             if (inCwd) { // 文件存在于工作区
-                String cwdHash = sha1(readContents(file));
+                String cwdHash = getStatCache().hash(fileName); // stat信息没变的文件不重新计算哈希
                 // 情况1: 文件已暂存，但工作区版本又被修改
                 if (stagedHash != null && !stagedHash.equals(cwdHash)) {
                     modifiedNotStagedFiles.add(fileName + " (modified)");
@@ -423,6 +478,8 @@ public class Repository {
             }
         }
 
+        saveStatCache();
+
         // 7. 计算 "Untracked Files"
         List<String> untrackedFiles = new ArrayList<>();
         for (String fileName : cwdFileNames) {
@@ -458,8 +515,7 @@ public class Repository {
     public static void checkoutFileFromHead(String fileName) {
         //0.初始化自检
         if (!GITLET_DIR.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException("Not in an initialized Gitlet directory.");
         }
         Commit headCommit = getHeadCommit();
         Map<String, String> trackedFiles = headCommit.getTrackedFiles();
@@ -473,21 +529,18 @@ public class Repository {
         //2.获取该文件在HEAD commit中的hash
         String blobHash = trackedFiles.get(fileName);
 
-        //3.读取blob内容
-        File blobFile = join(OBJECTS_DIR, blobHash);
-        byte[] fileContent = readContents(blobFile);
-
-        //4.覆盖
+        //3.流式读取blob内容并覆盖
         File workingDirectoryFile = join(CWD, fileName);
-        writeContents(workingDirectoryFile, fileContent);
+        OBJECT_STORE.copyBlobTo(blobHash, workingDirectoryFile);
+        getStatCache().update(fileName, blobHash);
+        saveStatCache();
     }
 
     //用指定commit中的文件版本覆盖CWD中的同名文件
     public static void checkoutFileFromCommit(String commitID, String fileName) {
         //0.初始化自检
         if (!GITLET_DIR.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException("Not in an initialized Gitlet directory.");
         }
         //1.找到ID对应的commit
         String fullCommitID = findFullCommitId(commitID);
@@ -495,7 +548,6 @@ public class Repository {
             System.out.println("No commit with that id exists.");
             return;
         }
-        File commitFile = join(OBJECTS_DIR, fullCommitID);
         Commit targetCommit = readCommit(fullCommitID);
 
         //2.检查文件是否在commit中被跟踪
@@ -507,17 +559,16 @@ public class Repository {
 
         //3.覆盖
         String blobHash = trackedFiles.get(fileName);
-        File blobFile = join(OBJECTS_DIR, blobHash);
-        byte[] fileContent = readContents(blobFile);
         File workingDirectoryFile = join(CWD, fileName);
-        writeContents(workingDirectoryFile, fileContent);
+        OBJECT_STORE.copyBlobTo(blobHash, workingDirectoryFile);
+        getStatCache().update(fileName, blobHash);
+        saveStatCache();
     }
 
     public static void checkoutBranch(String branchName) {
         //0.初始化自检
         if (!GITLET_DIR.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException("Not in an initialized Gitlet directory.");
         }
         //1.检查目标分支是否存在
         File branchFile = join(HEADS_DIR, branchName);
@@ -536,7 +587,7 @@ public class Repository {
         //3.检查有无untrackedFile会被覆盖(?
         Commit targetCommit = readCommit(readContentsAsString(branchFile));
         Map<String, String> targetTrackedFiles = targetCommit.getTrackedFiles();
-        List<String> cwdFiles = plainFilenamesIn(CWD);
+        List<String> cwdFiles = workingFileNames();
         if (cwdFiles != null) {
             Commit headCommit = getHeadCommit();
             Map<String, String> headTrackedFiles = headCommit.getTrackedFiles();
@@ -549,26 +600,11 @@ public class Repository {
             }
         }
 
-        //4.执行转换
-        for (Map.Entry<String, String> entry : targetTrackedFiles.entrySet()) {
-            String fileName = entry.getKey();
-            String blobHash = entry.getValue();
-            File blobFile = join(OBJECTS_DIR, blobHash);
-            byte[] content = readContents(blobFile);
-            File workingDirectoryFile = join(CWD, fileName);
-            writeContents(workingDirectoryFile, content);
-        }
-
-        //5.删除只在当前分支而不在targetCommit中的文件
-        Commit headCommit = getHeadCommit();
-        for (String fileName : headCommit.getTrackedFiles().keySet()) {
-            if (!targetTrackedFiles.containsKey(fileName)) {
-                restrictedDelete(join(CWD, fileName));
-            }
-        }
+        //4.执行转换，写入targetCommit的文件后，再删除只在当前分支而不在targetCommit中的文件
+        materializeCommit(targetCommit, getHeadCommit());
 
         //6.切换HEAD到目标分支
-        writeContents(HEAD_FILE, "ref: refs/heads/" + branchName);
+        writeContentsAtomic(HEAD_FILE, GITLET_DIR, "ref: refs/heads/" + branchName);
 
         //7.清空暂存区
         StagingArea stagingArea = readStagingArea();
@@ -580,8 +616,7 @@ public class Repository {
     public static void branch(String branchName) {
         //1.初始化自检查
         if (!GITLET_DIR.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException("Not in an initialized Gitlet directory.");
         }
 
         //1.检查分支是否存在
@@ -595,15 +630,14 @@ public class Repository {
         String headCommitHash = getHeadCommitHash();
 
         //3.创建新分支
-        writeContents(newBranchFile, headCommitHash);
+        writeContentsAtomic(newBranchFile, GITLET_DIR, headCommitHash);
     }
 
     //删除分支并不是要删除分支上的所以commit，而是将分支删除而已
     public static void rmBranch(String branchName) {
         //1.初始化自检查
         if (!GITLET_DIR.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException("Not in an initialized Gitlet directory.");
         }
 
         //2.检查要删除的分支是否存在
@@ -629,8 +663,7 @@ public class Repository {
     public static void reset(String commitID) {
         //1.初始化自检查
         if (!GITLET_DIR.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException("Not in an initialized Gitlet directory.");
         }
 
         String fullCommitID = findFullCommitId(commitID);
@@ -640,8 +673,7 @@ public class Repository {
         }
 
         //2.检查commitID是否存在
-        File commitFile = join(OBJECTS_DIR, fullCommitID);
-        if (!commitFile.exists()) {
+        if (OBJECT_STORE.typeOf(fullCommitID) != ObjectStore.TYPE_COMMIT) {
             System.out.println("No commit with that id exists.");
             return;
         }
@@ -651,7 +683,7 @@ public class Repository {
         Commit headCommit = getHeadCommit();
 
         //4.检查文件
-        List<String> cwdFiles = plainFilenamesIn(CWD);
+        List<String> cwdFiles = workingFileNames();
         if (cwdFiles != null) {
             Map<String, String> targetTrackedFiles = targetCommit.getTrackedFiles();
             Map<String, String> headTrackedFiles = headCommit.getTrackedFiles();
@@ -667,21 +699,13 @@ public class Repository {
             }
         }
 
-        //5.更新文件
-        for (String fileName : targetCommit.getTrackedFiles().keySet()) {
-            checkoutFileFromCommit(commitID, fileName);
-        }
-        //6.删除
-        for (String fileName : headCommit.getTrackedFiles().keySet()) {
-            if (!targetCommit.getTrackedFiles().containsKey(fileName)) {
-                restrictedDelete(join(CWD, fileName));
-            }
-        }
+        //5.更新文件，6.删除不在targetCommit中的文件
+        materializeCommit(targetCommit, headCommit);
 
-        //7.移动HEAD指针
+        //7.移动HEAD指针，写入完整的commit id
         String currentBranchName = readContentsAsString(HEAD_FILE).replace("ref: refs/heads/", "");
         File currentBranchFile = join(HEADS_DIR, currentBranchName);
-        writeContents(currentBranchFile, commitID);
+        writeContentsAtomic(currentBranchFile, GITLET_DIR, fullCommitID);
 
         //8.清空暂存区
         StagingArea stage = readStagingArea();
@@ -716,79 +740,100 @@ public class Repository {
         Commit currentCommit = readCommit(currentHeadId);
         Commit givenCommit = readCommit(givenHeadId);
 
-        //5. 寻找分叉点
-        // 这个算法更健壮且正确
-        Set<String> currentAncestors = new HashSet<>();
-        Queue<String> queue = new LinkedList<>();
-        queue.add(currentHeadId);
-
-        // 通过广度优先搜索找到当前分支所有祖先
-        while (!queue.isEmpty()) {
-            String commitId = queue.poll();
-            if (commitId == null) {
-                continue;
-            }
-            currentAncestors.add(commitId);
-            Commit commit = readCommit(commitId);
-            for (String parentId : commit.getParents()) {
-                queue.add(parentId);
-            }
-        }
-
-        String splitPointId = null;
-        queue.add(givenHeadId);
-
-        // 在目标分支的祖先中，找到第一个也存在于当前分支祖先集合里的提交
-        while (!queue.isEmpty()) {
-            String commitId = queue.poll();
-            if (commitId == null) continue;
-
-            if (currentAncestors.contains(commitId)) {
-                splitPointId = commitId;
-                break; // 找到了最近的公共祖先
-            }
-            Commit commit = readCommit(commitId);
-            for (String parentId : commit.getParents()) {
-                queue.add(parentId);
-            }
-        }
-
-        //6. 处理特殊合并情况
-        if (splitPointId.equals(givenHeadId)) {
+        //5. 处理特殊合并情况，祖先判断直接在commit-graph上做，按generation剪枝
+        ensureInGraph(currentHeadId);
+        CommitGraph graph = ensureInGraph(givenHeadId);
+        if (graph.isAncestor(givenHeadId, currentHeadId)) {
             System.out.println("Given branch is an ancestor of the current branch.");
             return;
         }
-        if (splitPointId.equals(currentHeadId)) {
+        if (graph.isAncestor(currentHeadId, givenHeadId)) {
             System.out.println("Current branch fast-forwarded.");
             // 快速前进：只需将当前分支指针指向目标分支，并检出
             checkoutBranch(branchName); // checkoutBranch 会更新工作区和 HEAD 文件
             return;
         }
 
+        //6. 寻找分叉点：按generation从大到小遍历commit-graph，不需要反序列化任何commit
+        String splitPointId = graph.mergeBase(currentHeadId, givenHeadId);
+
         // 4. 重新检查未跟踪文件 (正确的位置和逻辑)
         // 必须在知道合并细节后，执行操作前检查
-        Map<String, String> splitFiles = readCommit(splitPointId).getTrackedFiles();
-        Map<String, String> currentFiles = currentCommit.getTrackedFiles();
-        Map<String, String> givenFiles = givenCommit.getTrackedFiles();
-        Set<String> allFileNames = new HashSet<>();
-        allFileNames.addAll(splitFiles.keySet());
-        allFileNames.addAll(currentFiles.keySet());
-        allFileNames.addAll(givenFiles.keySet());
-
-        List<String> cwdFiles = plainFilenamesIn(CWD);
+        // 只有从分叉点到任意一边有变化的文件需要处理，两边都没动过的文件保持原样；
+        // 三个commit都有tree时只比较hash不同的子树，下面三个映射只包含这些文件
+        // 各自init的仓库之间fetch来的分支没有共同祖先（initial commit带创建时间），这时把分叉点当作空commit
+        Commit splitCommit = splitPointId == null
+                ? new Commit("", new ArrayList<>(), new HashMap<>(), new Date(0))
+                : readCommit(splitPointId);
+        Map<String, String[]> currentChanges = changedFiles(splitCommit, currentCommit);
+        Map<String, String[]> givenChanges = changedFiles(splitCommit, givenCommit);
+        Set<String> allFileNames = new TreeSet<>(currentChanges.keySet());
+        allFileNames.addAll(givenChanges.keySet());
+        Map<String, String> splitFiles = new HashMap<>();
+        Map<String, String> currentFiles = new HashMap<>();
+        Map<String, String> givenFiles = new HashMap<>();
+        for (String fileName : allFileNames) {
+            String[] current = currentChanges.get(fileName);
+            String[] given = givenChanges.get(fileName);
+            String splitHash = current != null ? current[0] : given[0];
+            putIfNotNull(splitFiles, fileName, splitHash);
+            putIfNotNull(currentFiles, fileName, current != null ? current[1] : splitHash);
+            putIfNotNull(givenFiles, fileName, given != null ? given[1] : splitHash);
+        }
+
+        // 改名检测（配置core.renames）：一边把a改名为b、另一边还有a（可能改过内容）时，
+        // 两边的内容合并到b、删掉a，而不是当作一边删除一边新增
+        Map<String, String> givenRenames = new TreeMap<>();
+        Map<String, String> currentRenames = new TreeMap<>();
+        if (CONFIG.getBoolean("core.renames", false)) {
+            for (Map.Entry<String, String> rename : detectRenames(allFileNames, splitFiles, givenFiles).entrySet()) {
+                if (currentFiles.get(rename.getKey()) != null && currentFiles.get(rename.getValue()) == null) {
+                    givenRenames.put(rename.getKey(), rename.getValue());
+                }
+            }
+            for (Map.Entry<String, String> rename : detectRenames(allFileNames, splitFiles, currentFiles).entrySet()) {
+                if (givenFiles.get(rename.getKey()) != null && givenFiles.get(rename.getValue()) == null) {
+                    currentRenames.put(rename.getKey(), rename.getValue());
+                }
+            }
+        }
+
         for (String fileName : allFileNames) {
             String givenHash = givenFiles.get(fileName);
             String currentHash = currentFiles.get(fileName);
             // 如果一个文件在当前分支未被跟踪，但合并操作需要创建/修改它，则报错
-            if (!currentFiles.containsKey(fileName) && givenHash != null && cwdFiles.contains(fileName)) {
+            if (!currentFiles.containsKey(fileName) && givenHash != null && join(CWD, fileName).isFile()) {
                 System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
                 return;
             }
         }
 
 
-        // 7. 三方合并 (补全版) ---
+        // 改名的文件先合并，之后的逐文件合并跳过新旧两个名字
         boolean conflictOccurred = false;
+        for (Map.Entry<String, String> rename : givenRenames.entrySet()) {
+            String oldName = rename.getKey();
+            String newName = rename.getValue();
+            conflictOccurred |= mergeRenamed(stagingArea, newName, null, splitFiles.get(oldName),
+                    currentFiles.get(oldName), givenFiles.get(newName));
+            // 旧名字与rm相同：暂存删除并删掉工作区文件
+            stagingArea.remove(oldName);
+            restrictedDelete(join(CWD, oldName));
+            getStatCache().remove(oldName);
+            allFileNames.remove(oldName);
+            allFileNames.remove(newName);
+        }
+        for (Map.Entry<String, String> rename : currentRenames.entrySet()) {
+            String oldName = rename.getKey();
+            String newName = rename.getValue();
+            conflictOccurred |= mergeRenamed(stagingArea, newName, currentFiles.get(newName),
+                    splitFiles.get(oldName), currentFiles.get(newName), givenFiles.get(oldName));
+            allFileNames.remove(oldName);
+            allFileNames.remove(newName);
+        }
+        saveStatCache();
+
+        // 7. 三方合并 (补全版) ---
         for (String fileName : allFileNames) {
             String splitHash = splitFiles.get(fileName);
             String currentHash = currentFiles.get(fileName);
@@ -800,38 +845,31 @@ public class Repository {
             if (modifiedInCurrent && modifiedInGiven) {
                 // 情况A: 两个分支都修改了
                 if (!Objects.equals(currentHash, givenHash)) {
-                    conflictOccurred = true;
-                    // --- 冲突处理逻辑 ---
-                    // 读取当前分支文件内容
-                    String currentContent = (currentHash == null) ? "" : readContentsAsString(join(OBJECTS_DIR, currentHash));
-                    // 读取目标分支文件内容
-                    String givenContent = (givenHash == null) ? "" : readContentsAsString(join(OBJECTS_DIR, givenHash));
-                    // 构建冲突文件内容并写入
-                    String conflictContent = "<<<<<<< HEAD\n"
-                            + currentContent
-                            + "=======\n"
-                            + givenContent
-                            + ">>>>>>>\n";
-                    File conflictFile = join(CWD, fileName);
-                    writeContents(conflictFile, conflictContent);
-                    String conflictFileHash = sha1(readContents(conflictFile));
-                    stagingArea.add(fileName, conflictFileHash);
+                    // --- 按行三方合并，只有两边改动重叠的地方才是冲突 ---
+                    Merge3.Result merged = Merge3.merge(readBlobOrEmpty(splitHash),
+                            readBlobOrEmpty(currentHash), readBlobOrEmpty(givenHash));
+                    conflictOccurred |= merged.conflict;
+                    File mergedFile = join(CWD, fileName);
+                    mergedFile.getParentFile().mkdirs();
+                    writeContents(mergedFile, merged.content);
+                    String mergedHash = OBJECT_STORE.writeBlob(mergedFile);
+                    stagingArea.add(fileName, mergedHash);
                 }
                 // 如果内容相同，则无需操作 (规则 3, 4)
 
             } else if (!modifiedInCurrent && modifiedInGiven) {
                 // 情况B: 仅在目标分支(given)中修改
                 if (givenHash == null) {
-                    // **规则5**: 在given中被删除 -> 调用rm的逻辑
-                    rm(fileName);
+                    // **规则5**: 在given中被删除 -> 与rm相同：暂存删除并删掉工作区文件
+                    stagingArea.remove(fileName);
+                    restrictedDelete(join(CWD, fileName));
+                    getStatCache().remove(fileName);
+                    saveStatCache();
                 } else {
                     // **规则1 & 7**: 在given中被修改或新增 -> checkout并add
                     checkoutFileFromCommit(givenHeadId, fileName); // 从目标提交检出文件
                     stagingArea.add(fileName, givenHash);
                 }
-                if (currentHash == null) {
-                    rm(fileName); // 调用 rm 来处理工作区文件的删除和暂存区的更新
-                }
             }
             // 情况C: 仅在当前分支中修改 (!modifiedInGiven && modifiedInCurrent)
             // 对应规则 2, 6, 8，这些都无需任何操作，因为当前分支的状态就是我们想要的。
@@ -839,6 +877,8 @@ public class Repository {
 
         // --- 8. 提交或报告冲突 ---
         if (conflictOccurred) {
+            // 冲突文件（以及自动合并好的文件）已暂存，解决冲突后再提交
+            saveStagingArea(stagingArea);
             System.out.println("Encountered a merge conflict.");
         } else {
             // 没有冲突，创建合并提交
@@ -848,27 +888,17 @@ public class Repository {
             parents.add(currentHeadId); // 第一个父节点是当前分支的HEAD
             parents.add(givenHeadId);   // 第二个父节点是目标分支的HEAD
 
-            StagingArea finalStagingArea = readStagingArea();
-            Map<String, String> newTrackedFiles = new HashMap<>(currentCommit.getTrackedFiles());
-
-            // 应用暂存区（在merge过程中被修改）的变化
-            for (Map.Entry<String, String> entry : finalStagingArea.getFieldToAdd().entrySet()) {
-                newTrackedFiles.put(entry.getKey(), entry.getValue());
-            }
-            for (String fileToRemove : finalStagingArea.getFieldToRemove().keySet()) {
-                newTrackedFiles.remove(fileToRemove);
-            }
+            StagingArea finalStagingArea = stagingArea;
 
-            // 用这个完整的文件列表创建Commit
-            Commit newMergeCommit = new Commit(message, parents, newTrackedFiles, new Date());
+            // 在当前分支的根tree上应用暂存区（在merge过程中被修改）的变化
+            Commit newMergeCommit = commitFromStaging(message, parents, currentCommit, finalStagingArea);
 
             // 保存commit
-            saveCommit(newMergeCommit); // 复用你的 saveCommit 辅助函数
-            String newCommitId = sha1(serialize(newMergeCommit));
+            String newCommitId = saveCommit(newMergeCommit); // 复用你的 saveCommit 辅助函数
 
             // 更新当前分支的HEAD指向新的合并提交
             File currentBranchFile = join(HEADS_DIR, currentBranchName);
-            writeContents(currentBranchFile, newCommitId);
+            writeContentsAtomic(currentBranchFile, GITLET_DIR, newCommitId);
 
             // 清空暂存区
             finalStagingArea.clear();
@@ -876,15 +906,505 @@ public class Repository {
         }
     }
 
+    //暂存区中的改名：暂存删除的已跟踪文件 -> 暂存新增的未跟踪文件
+    private static Map<String, String> stagedRenames(StagingArea stagingArea) {
+        Map<String, String> trackedFiles = getHeadCommit().getTrackedFiles();
+        Map<String, String> deleted = new HashMap<>();
+        for (String fileName : stagingArea.getFieldToRemove().keySet()) {
+            if (trackedFiles.containsKey(fileName)) {
+                deleted.put(fileName, trackedFiles.get(fileName));
+            }
+        }
+        Map<String, String> added = new HashMap<>();
+        for (Map.Entry<String, String> entry : stagingArea.getFieldToAdd().entrySet()) {
+            if (!trackedFiles.containsKey(entry.getKey())) {
+                added.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return RenameDetector.detect(OBJECT_STORE, deleted, added,
+                CONFIG.getInt("rename.similarity", DEFAULT_RENAME_SIMILARITY));
+    }
+
+    //在FILENAMES（有变化的文件）中找SIDEFILES相对分叉点SPLITFILES的改名：旧文件名 -> 新文件名
+    //相似度阈值由配置rename.similarity决定（百分比，默认50）
+    private static Map<String, String> detectRenames(Set<String> fileNames, Map<String, String> splitFiles,
+                                                     Map<String, String> sideFiles) {
+        Map<String, String> deleted = new HashMap<>();
+        Map<String, String> added = new HashMap<>();
+        for (String fileName : fileNames) {
+            String splitHash = splitFiles.get(fileName);
+            String sideHash = sideFiles.get(fileName);
+            if (splitHash != null && sideHash == null) {
+                deleted.put(fileName, splitHash);
+            } else if (splitHash == null && sideHash != null) {
+                added.put(fileName, sideHash);
+            }
+        }
+        return RenameDetector.detect(OBJECT_STORE, deleted, added,
+                CONFIG.getInt("rename.similarity", DEFAULT_RENAME_SIMILARITY));
+    }
+
+    //改名文件的三方合并，结果放在FILENAME下并暂存；当前commit中FILENAME已经是EXISTINGHASH，
+    //结果与它相同时什么也不做。返回是否有冲突
+    private static boolean mergeRenamed(StagingArea stagingArea, String fileName, String existingHash,
+                                        String splitHash, String currentHash, String givenHash) {
+        File file = join(CWD, fileName);
+        if (Objects.equals(splitHash, givenHash) || Objects.equals(currentHash, givenHash)
+                || Objects.equals(splitHash, currentHash)) {
+            // 只有一边改了内容（或两边改成一样），直接取改过的一边
+            String resultHash = Objects.equals(splitHash, currentHash) ? givenHash : currentHash;
+            if (!Objects.equals(resultHash, existingHash)) {
+                OBJECT_STORE.copyBlobTo(resultHash, file);
+                getStatCache().update(fileName, resultHash);
+                stagingArea.add(fileName, resultHash);
+            }
+            return false;
+        }
+        Merge3.Result merged = Merge3.merge(readBlobOrEmpty(splitHash),
+                readBlobOrEmpty(currentHash), readBlobOrEmpty(givenHash));
+        file.getParentFile().mkdirs();
+        writeContents(file, merged.content);
+        stagingArea.add(fileName, OBJECT_STORE.writeBlob(file));
+        return merged.conflict;
+    }
+
+    //repack命令，把所有loose对象打包进一个pack（同时压缩），减少objects目录下的文件数；
+    //LOOSEONLY 为 true 时（repack --loose）只原地压缩 loose 对象，不打包
+    public static void repack(boolean looseOnly) {
+        //1.初始化自检
+        if (!GITLET_DIR.exists()) {
+            throw new GitletException("Not in an initialized Gitlet directory.");
+        }
+
+        //2.打包或压缩
+        if (looseOnly) {
+            int compressed = OBJECT_STORE.compressLoose();
+            System.out.println("Compressed " + compressed + " objects.");
+            return;
+        }
+        int packed = OBJECT_STORE.repack(deltaBaseHints());
+        System.out.println("Packed " + packed + " objects.");
+    }
+
+    //gc命令，删除从所有分支、HEAD和暂存区都到达不了、且早于宽限期的对象，报告释放的空间；
+    //宽限期由配置 gc.graceSeconds 决定（默认两周），gc --now 不留宽限期
+    public static void gc(boolean now) {
+        //1.初始化自检
+        if (!GITLET_DIR.exists()) {
+            throw new GitletException("Not in an initialized Gitlet directory.");
+        }
+
+        //2.根：所有分支、HEAD，以及暂存区里还没提交的blob
+        Set<String> rootCommits = new HashSet<>();
+        for (String branch : branchNames()) {
+            rootCommits.add(readContentsAsString(join(HEADS_DIR, branch)));
+        }
+        rootCommits.add(getHeadCommitHash());
+        Set<String> rootBlobs = new HashSet<>(readStagingArea().getFieldToAdd().values());
+
+        //3.标记、清除
+        long graceMillis = now ? 0 : CONFIG.getLong("gc.graceSeconds", DEFAULT_GC_GRACE_SECONDS) * 1000;
+        long[] result = GarbageCollector.run(OBJECT_STORE, rootCommits, rootBlobs,
+                                             deltaBaseHints(), System.currentTimeMillis() - graceMillis);
+
+        //4.删掉的commit可能还在commit-graph和message索引里，之后按需重建；只删了blob和tree时索引仍然有效
+        if (result[2] > 0) {
+            COMMIT_GRAPH_FILE.delete();
+            MESSAGE_INDEX_FILE.delete();
+            MESSAGE_TOKENS_FILE.delete();
+        }
+        //内存里的索引和commit缓存也可能引用了删掉的commit；daemon在bumpVersion之后不会再自己发现
+        resetCaches();
+
+        //5.原子写入时崩溃留下的临时文件（objects下的由对象库清理）
+        long cutoff = System.currentTimeMillis() - graceMillis;
+        for (String name : plainFilenamesIn(GITLET_DIR)) {
+            File file = join(GITLET_DIR, name);
+            if (name.startsWith("tmp-") && file.lastModified() < cutoff) {
+                file.delete();
+            }
+        }
+        System.out.println("Removed " + result[0] + " objects, reclaimed " + result[1] + " bytes.");
+    }
+
+    //daemon命令，常驻内存并通过本机端口接收命令，见 Daemon；
+    //端口取参数PORT，没有参数时取配置 daemon.port（默认0，由系统分配）
+    public static void daemon(String port) {
+        //1.初始化自检
+        if (!GITLET_DIR.exists()) {
+            throw new GitletException("Not in an initialized Gitlet directory.");
+        }
+
+        //2.解析端口
+        int portNumber;
+        try {
+            portNumber = port == null ? CONFIG.getInt("daemon.port", 0) : Integer.parseInt(port);
+        } catch (NumberFormatException excp) {
+            throw new GitletException("Incorrect operands");
+        }
+        if (portNumber < 0 || portNumber > 65535) {
+            throw new GitletException("Incorrect operands");
+        }
+
+        //3.启动时的缓存以当前版本为准
+        refreshCaches();
+        Daemon.serve(portNumber, DAEMON_PORT_FILE, DAEMON_TOKEN_FILE);
+    }
+
+    //add-remote命令，记录名为REMOTENAME、.gitlet目录在REMOTEPATH（用/分隔）的远程仓库
+    public static void addRemote(String remoteName, String remotePath) {
+        //1.初始化自检
+        if (!GITLET_DIR.exists()) {
+            throw new GitletException("Not in an initialized Gitlet directory.");
+        }
+
+        //2.检查重名
+        File remoteFile = join(REMOTES_DIR, remoteName);
+        if (remoteFile.exists()) {
+            throw new GitletException("A remote with that name already exists.");
+        }
+
+        //3.保存路径
+        REMOTES_DIR.mkdir();
+        writeContentsAtomic(remoteFile, GITLET_DIR, remotePath.replace("/", File.separator));
+    }
+
+    //rm-remote命令，删除名为REMOTENAME的远程仓库记录（fetch得到的分支保留）
+    public static void rmRemote(String remoteName) {
+        //1.初始化自检
+        if (!GITLET_DIR.exists()) {
+            throw new GitletException("Not in an initialized Gitlet directory.");
+        }
+
+        //2.删除
+        File remoteFile = join(REMOTES_DIR, remoteName);
+        if (!remoteFile.isFile()) {
+            throw new GitletException("A remote with that name does not exist.");
+        }
+        remoteFile.delete();
+    }
+
+    //push命令，把当前分支推送到远程仓库REMOTENAME的分支BRANCHNAME，只复制远程仓库缺少的对象；
+    //远程分支的最新commit必须在当前分支的历史中（只允许快进），远程分支不存在时新建
+    public static void push(String remoteName, String branchName) {
+        //1.初始化自检，找到远程仓库
+        if (!GITLET_DIR.exists()) {
+            throw new GitletException("Not in an initialized Gitlet directory.");
+        }
+        File remoteDir = remoteGitletDir(remoteName);
+        Config remoteConfig = Config.load(join(remoteDir, CONFIG_FILE.getName()));
+
+        //2.在远程仓库的写锁下完成检查、复制和移动分支
+        FileChannel remoteLock = acquireLock(join(remoteDir, LOCK_FILE.getName()),
+                remoteConfig.getLong("core.lockTimeoutMs", DEFAULT_LOCK_TIMEOUT_MS));
+        try {
+            //3.远程分支的最新commit必须是当前commit或其祖先
+            String headId = getHeadCommitHash();
+            File remoteBranchFile = join(remoteDir, REFS_DIR.getName(), HEADS_DIR.getName(), branchName);
+            if (remoteBranchFile.isFile()) {
+                String remoteHeadId = readContentsAsString(remoteBranchFile);
+                if (!remoteHeadId.equals(headId) && !(OBJECT_STORE.contains(remoteHeadId)
+                        && ensureInGraph(headId).isAncestor(remoteHeadId, headId))) {
+                    throw new GitletException("Please pull down remote changes before pushing.");
+                }
+            }
+
+            //4.复制对象，追加远程仓库已有的索引，最后才移动远程分支
+            ObjectStore remoteStore = new ObjectStore(join(remoteDir, OBJECTS_DIR.getName()), remoteConfig);
+            List<String> pushed = RemoteSync.copyMissing(OBJECT_STORE, remoteStore, headId);
+            RemoteSync.appendIndexes(remoteDir, remoteStore, remoteConfig, pushed);
+            remoteBranchFile.getParentFile().mkdirs();
+            writeContentsAtomic(remoteBranchFile, remoteDir, headId);
+
+            //5.远程仓库的daemon据此丢弃旧缓存
+            writeContentsAtomic(join(remoteDir, VERSION_FILE.getName()), remoteDir,
+                    Long.toHexString(new Random().nextLong()));
+        } finally {
+            try {
+                remoteLock.close();
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+
+    //fetch命令，把远程仓库REMOTENAME的分支BRANCHNAME取到本地分支REMOTENAME/BRANCHNAME，只复制本地缺少的对象
+    public static void fetch(String remoteName, String branchName) {
+        //1.初始化自检，找到远程分支
+        if (!GITLET_DIR.exists()) {
+            throw new GitletException("Not in an initialized Gitlet directory.");
+        }
+        File remoteDir = remoteGitletDir(remoteName);
+        File remoteBranchFile = join(remoteDir, REFS_DIR.getName(), HEADS_DIR.getName(), branchName);
+        if (!remoteBranchFile.isFile()) {
+            throw new GitletException("That remote does not have that branch.");
+        }
+        //远程仓库的对象和分支都是原子写入的，读取不需要远程仓库的锁
+        String remoteHeadId = readContentsAsString(remoteBranchFile);
+        Config remoteConfig = Config.load(join(remoteDir, CONFIG_FILE.getName()));
+        ObjectStore remoteStore = new ObjectStore(join(remoteDir, OBJECTS_DIR.getName()), remoteConfig);
+
+        //2.先确保message索引完整，再复制对象、追加索引
+        MessageIndex index = getMessageIndex();
+        for (String commitHash : RemoteSync.copyMissing(remoteStore, OBJECT_STORE, remoteHeadId)) {
+            index.add(commitHash, readCommit(commitHash).getMessage());
+        }
+        ensureInGraph(remoteHeadId);
+
+        //3.更新本地的远程分支
+        File branchFile = join(HEADS_DIR, remoteName, branchName);
+        branchFile.getParentFile().mkdirs();
+        writeContentsAtomic(branchFile, GITLET_DIR, remoteHeadId);
+    }
+
+    //pull命令，fetch之后把REMOTENAME/BRANCHNAME合并到当前分支
+    public static void pull(String remoteName, String branchName) {
+        fetch(remoteName, branchName);
+        merge(remoteName + "/" + branchName);
+    }
+
+    //bundle create命令，把分支BRANCHNAME的完整历史写成单个文件FILENAME，见 Bundle
+    public static void bundleCreate(String fileName, String branchName) {
+        //1.初始化自检
+        if (!GITLET_DIR.exists()) {
+            throw new GitletException("Not in an initialized Gitlet directory.");
+        }
+        File branchFile = join(HEADS_DIR, branchName);
+        if (!branchFile.isFile()) {
+            throw new GitletException("A branch with that name does not exist.");
+        }
+
+        //2.顺序写出
+        int level = CONFIG.getInt("core.compression", -1);
+        int count = Bundle.write(workTreePath(fileName), branchName, readContentsAsString(branchFile),
+                OBJECT_STORE, level >= 0 ? level : Deflater.DEFAULT_COMPRESSION);
+        System.out.println("Bundled " + count + " objects.");
+    }
+
+    //bundle unbundle命令，把bundle文件FILENAME中本地没有的对象读进一个新pack，打印其中每个分支的commit id；
+    //本地还没有的分支直接创建，已有的分支不动（之后可以用merge或reset处理）
+    public static void unbundle(String fileName) {
+        //1.初始化自检
+        if (!GITLET_DIR.exists()) {
+            throw new GitletException("Not in an initialized Gitlet directory.");
+        }
+        File bundleFile = workTreePath(fileName);
+        if (!bundleFile.isFile()) {
+            throw new GitletException("Bundle file does not exist.");
+        }
+
+        //2.先确保message索引完整，再读入对象、追加索引
+        MessageIndex index = getMessageIndex();
+        List<String> newCommits = new ArrayList<>();
+        Map<String, String> refs = Bundle.read(bundleFile, OBJECT_STORE, newCommits);
+        for (String commitHash : newCommits) {
+            index.add(commitHash, readCommit(commitHash).getMessage());
+        }
+
+        //3.创建本地还没有的分支
+        for (Map.Entry<String, String> ref : refs.entrySet()) {
+            String headId = ref.getValue();
+            ensureInGraph(headId);
+            File branchFile = join(HEADS_DIR, ref.getKey());
+            if (!branchFile.exists()) {
+                branchFile.getParentFile().mkdirs();
+                writeContentsAtomic(branchFile, GITLET_DIR, headId);
+                System.out.println(headId + " " + ref.getKey());
+            } else if (readContentsAsString(branchFile).equals(headId)) {
+                System.out.println(headId + " " + ref.getKey());
+            } else {
+                System.out.println(headId + " " + ref.getKey() + " (branch exists, not updated)");
+            }
+        }
+    }
+
+    //用户给出的路径，相对路径以工作目录为基准
+    private static File workTreePath(String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : join(CWD, path);
+    }
+
+    //远程仓库REMOTENAME的.gitlet目录，相对路径以工作目录为基准
+    private static File remoteGitletDir(String remoteName) {
+        File remoteFile = join(REMOTES_DIR, remoteName);
+        if (!remoteFile.isFile()) {
+            throw new GitletException("A remote with that name does not exist.");
+        }
+        File remoteDir = workTreePath(readContentsAsString(remoteFile));
+        if (!join(remoteDir, OBJECTS_DIR.getName()).isDirectory()) {
+            throw new GitletException("Remote directory not found.");
+        }
+        if (!join(remoteDir, FORMAT_FILE.getName()).isFile()) {
+            throw new GitletException("Remote repository uses an old format; run upgrade there first.");
+        }
+        return remoteDir;
+    }
+
+    //按时间顺序遍历所有 commit，为每个 blob 找到同一文件的上一个版本作为差量基础对象；
+    //每个 blob 只在第一次出现时记录，基础对象因此总是排在前面，不会形成环
+    private static Map<String, String> deltaBaseHints() {
+        List<Commit> commits = new ArrayList<>();
+        for (String commitHash : OBJECT_STORE.listIds(ObjectStore.TYPE_COMMIT)) {
+            commits.add(readCommit(commitHash));
+        }
+        commits.sort(Comparator.comparing(Commit::getTimeStamp));
+
+        Map<String, String> hints = new LinkedHashMap<>();
+        Set<String> seen = new HashSet<>();
+        Map<String, String> lastVersion = new HashMap<>();
+        for (Commit commit : commits) {
+            for (Map.Entry<String, String> entry : commit.getTrackedFiles().entrySet()) {
+                String blobHash = entry.getValue();
+                String previous = lastVersion.put(entry.getKey(), blobHash);
+                if (seen.add(blobHash) && previous != null) {
+                    hints.put(blobHash, previous);
+                }
+            }
+        }
+        return hints;
+    }
+
+    //diff命令，按 COMMITIDS 的个数比较：
+    //  0 个：暂存区（当前commit + 暂存的改动）与工作区
+    //  1 个：该commit与工作区
+    //  2 个：两个commit之间
+    //blob hash 相同的文件直接跳过，不读取内容
+    public static void diff(String... commitIds) {
+        //1.初始化自检
+        if (!GITLET_DIR.exists()) {
+            throw new GitletException("Not in an initialized Gitlet directory.");
+        }
+
+        //2.确定新旧两边的文件（文件名 -> blob hash）
+        Map<String, String> oldFiles;
+        boolean newIsWorkTree = commitIds.length < 2;
+        Commit oldCommit = null;
+        if (commitIds.length == 0) {
+            oldFiles = getIndexFiles();
+        } else {
+            oldCommit = resolveCommit(commitIds[0]);
+            if (oldCommit == null) {
+                return;
+            }
+            oldFiles = oldCommit.getTrackedFiles();
+        }
+        Map<String, String[]> changes;
+        if (newIsWorkTree) {
+            Set<String> candidates = new TreeSet<>(oldFiles.keySet());
+            candidates.addAll(getIndexFiles().keySet());
+            Map<String, String> newFiles = new HashMap<>();
+            for (String fileName : candidates) {
+                if (join(CWD, fileName).isFile()) {
+                    newFiles.put(fileName, getStatCache().hash(fileName)); // stat信息没变的文件不重新计算哈希
+                }
+            }
+            saveStatCache();
+            changes = changedFiles(oldFiles, newFiles);
+        } else {
+            Commit newCommit = resolveCommit(commitIds[1]);
+            if (newCommit == null) {
+                return;
+            }
+            //两个commit之间直接比较tree，不展开文件列表
+            changes = changedFiles(oldCommit, newCommit);
+        }
+
+        //3.逐个比较 hash 不同的文件
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Map.Entry<String, String[]> change : changes.entrySet()) {
+            String fileName = change.getKey();
+            String oldHash = change.getValue()[0];
+            String newHash = change.getValue()[1];
+            byte[] oldContent = oldHash == null ? null : OBJECT_STORE.read(oldHash, ObjectStore.TYPE_BLOB);
+            byte[] newContent;
+            if (newHash == null) {
+                newContent = null;
+            } else if (newIsWorkTree) {
+                newContent = readContents(join(CWD, fileName));
+            } else {
+                newContent = OBJECT_STORE.read(newHash, ObjectStore.TYPE_BLOB);
+            }
+            UnifiedDiff.write(out, fileName, oldContent, newContent);
+        }
+        System.out.write(out.toByteArray(), 0, out.size());
+        System.out.flush();
+    }
+
+    //暂存区视角下的文件：当前commit跟踪的文件，加上暂存添加的、去掉暂存删除的
+    private static Map<String, String> getIndexFiles() {
+        StagingArea stagingArea = readStagingArea();
+        Map<String, String> files = new HashMap<>(getHeadCommit().getTrackedFiles());
+        files.putAll(stagingArea.getFieldToAdd());
+        files.keySet().removeAll(stagingArea.getFieldToRemove().keySet());
+        return files;
+    }
+
+    //返回（可能缩写的）COMMITID 对应的commit，commit不存在时打印错误并返回null
+    private static Commit resolveCommit(String commitId) {
+        String fullCommitId = findFullCommitId(commitId);
+        if (fullCommitId == null) {
+            System.out.println("No commit with that id exists.");
+            return null;
+        }
+        return readCommit(fullCommitId);
+    }
+
+    //upgrade命令，把旧格式（Java序列化、对象无类型头）的仓库转换为当前格式
+    public static void upgrade() {
+        //1.初始化自检
+        if (!GITLET_DIR.exists()) {
+            throw new GitletException("Not in an initialized Gitlet directory.");
+        }
+        if (FORMAT_FILE.exists()) {
+            System.out.println("Repository is already up to date.");
+            return;
+        }
+
+        //2.转换
+        RepositoryUpgrade.run(OBJECT_STORE);
+        writeContentsAtomic(FORMAT_FILE, GITLET_DIR, Integer.toString(REPOSITORY_FORMAT));
+    }
+
+    //检查仓库格式，旧格式仓库需要先执行upgrade
+    public static void checkFormat() {
+        if (!GITLET_DIR.exists() || FORMAT_FILE.exists()) {
+            return;
+        }
+        throw new GitletException("This repository uses an old storage format; "
+                + "run 'java gitlet.Main upgrade' first.");
+    }
+
     //辅助函数
     //从文件中读取StagingArea对象
+    //第一次读取后缓存在内存中
     private static StagingArea readStagingArea() {
-        return readObject(STAGING_FILE, StagingArea.class);
+        if (stagingCache == null) {
+            stagingCache = BinaryCodec.decodeStagingArea(readContents(STAGING_FILE));
+        }
+        return stagingCache;
     }
 
-    //保存StagingArea对象，将暂存区对象写入
+    //保存StagingArea对象，将暂存区对象写入，内存中的缓存同时更新
     private static void saveStagingArea(StagingArea SA) {
-        writeObject(STAGING_FILE, SA);
+        writeContentsAtomic(STAGING_FILE, GITLET_DIR, BinaryCodec.encodeStagingArea(SA));
+        stagingCache = SA;
+    }
+
+    //VALUE不为null时放进MAP
+    private static void putIfNotNull(Map<String, String> map, String key, String value) {
+        if (value != null) {
+            map.put(key, value);
+        }
+    }
+
+    //工作目录中的所有文件（递归进入子目录，跳过.gitlet），文件名相对工作目录，以/分隔
+    private static List<String> workingFileNames() {
+        return ParallelAdd.listFiles(CWD, ".");
+    }
+
+    //读取blob内容，HASH为null（文件不存在）时返回空内容
+    private static byte[] readBlobOrEmpty(String hash) {
+        return hash == null ? new byte[0] : OBJECT_STORE.read(hash, ObjectStore.TYPE_BLOB);
     }
 
     //从文件中读取Commit对象，根据哈希值
@@ -892,11 +1412,131 @@ public class Repository {
         if (commitHash == null) {
             return null;
         }
-        File commitFile = join(OBJECTS_DIR, commitHash);
-        if (!commitFile.exists()) {
-            throw new GitletException("Commit with hash" + commitHash + " does not exist.");
+        Commit commit = COMMIT_CACHE.get(commitHash);
+        if (commit == null) {
+            if (OBJECT_STORE.typeOf(commitHash) != ObjectStore.TYPE_COMMIT) {
+                throw new GitletException("Commit with hash" + commitHash + " does not exist.");
+            }
+            commit = BinaryCodec.decodeCommit(OBJECT_STORE.read(commitHash, ObjectStore.TYPE_COMMIT));
+            if (commit.getTree() != null) {
+                //跟踪的文件在第一次用到时才从tree展开
+                commit = new Commit(commit.getMessage(), commit.getParents(),
+                        Tree.files(OBJECT_STORE, commit.getTree()), commit.getTimeStamp(), commit.getTree());
+            }
+            COMMIT_CACHE.put(commitHash, commit);
+        }
+        return commit;
+    }
+
+    //仓库被修改后写入新的版本号，本进程的缓存与磁盘一致，直接记为已看到
+    static void bumpVersion() {
+        if (!GITLET_DIR.isDirectory()) {
+            return;
+        }
+        seenVersion = Long.toHexString(new Random().nextLong());
+        writeContentsAtomic(VERSION_FILE, GITLET_DIR, seenVersion);
+    }
+
+    //版本号与上次看到的不同（其他进程修改过仓库）时丢弃所有内存缓存
+    static void refreshCaches() {
+        String version = VERSION_FILE.isFile() ? readContentsAsString(VERSION_FILE) : "";
+        if (!version.equals(seenVersion)) {
+            resetCaches();
+            seenVersion = version;
+        }
+    }
+
+    //获取仓库写锁，其他进程持有时每隔LOCK_RETRY_MS重试，超过配置core.lockTimeoutMs（默认10秒）报错；
+    //拿到锁后检查缓存是否被其他进程弄旧。仓库还不存在（init）时什么也不做，已经持有时直接返回。
+    //只读命令需要追加或重建派生索引时也调用它升级为持有写锁，命令结束时由Main释放
+    //（没有写锁时只读命令不会写.gitlet下的任何文件）
+    static void lock() {
+        if (!GITLET_DIR.isDirectory() || lockChannel != null) {
+            return;
+        }
+        lockChannel = acquireLock(LOCK_FILE, CONFIG.getLong("core.lockTimeoutMs", DEFAULT_LOCK_TIMEOUT_MS));
+        refreshCaches();
+    }
+
+    //获取LOCKFILE上的文件锁，其他进程持有时每隔LOCK_RETRY_MS重试，超过TIMEOUTMS毫秒报错
+    private static FileChannel acquireLock(File lockFile, long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            FileChannel channel = FileChannel.open(lockFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            while (channel.tryLock() == null) {
+                if (System.currentTimeMillis() >= deadline) {
+                    channel.close();
+                    throw new GitletException("Another gitlet process is modifying this repository.");
+                }
+                Thread.sleep(LOCK_RETRY_MS);
+            }
+            return channel;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw new GitletException("Interrupted while waiting for the repository lock.");
+        }
+    }
+
+    //当前是否持有仓库写锁
+    static boolean isLocked() {
+        return lockChannel != null;
+    }
+
+    //释放仓库写锁（关闭通道即释放锁）
+    static void unlock() {
+        if (lockChannel == null) {
+            return;
+        }
+        try {
+            lockChannel.close();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            lockChannel = null;
+        }
+    }
+
+    //调试模式下把commit缓存的命中统计输出到标准错误，之后计数清零
+    static void reportCacheStats() {
+        if (CONFIG.getBoolean("debug", false)) {
+            System.err.println(COMMIT_CACHE.takeStats());
+        }
+    }
+
+    //丢弃所有内存缓存，之后用到时重新从磁盘加载
+    static void resetCaches() {
+        commitGraph = null;
+        messageIndex = null;
+        statCache = null;
+        stagingCache = null;
+        COMMIT_CACHE.clear();
+        OBJECT_STORE.refresh();
+    }
+
+    //所有分支名（升序）；fetch得到的远程分支放在heads的子目录里，名字形如origin/master
+    private static List<String> branchNames() {
+        List<String> names = new ArrayList<>();
+        collectBranchNames(HEADS_DIR, "", names);
+        Collections.sort(names);
+        return names;
+    }
+
+    //把DIR下的分支（名字加上前缀PREFIX）放进NAMES，子目录递归
+    private static void collectBranchNames(File dir, String prefix, List<String> names) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collectBranchNames(file, prefix + file.getName() + "/", names);
+            } else {
+                names.add(prefix + file.getName());
+            }
         }
-        return readObject(commitFile, Commit.class);
     }
 
     //获取当前HEAD指向的Commit的hash值
@@ -912,45 +1552,244 @@ public class Repository {
         return readCommit(headHash);
     }
 
-    //保存Commit对象到Objects目录
-    private static void saveCommit(Commit commit) {
-        byte[] commitBytes = serialize(commit);
+    //保存Commit对象到Objects目录，同时追加到commit-graph，返回commit的hash
+    //commit的hash对规范的二进制编码计算，与JVM序列化细节无关
+    private static String saveCommit(Commit commit) {
+        if (commit.getTree() == null) {
+            commit = withTree(commit);
+        }
+        byte[] commitBytes = BinaryCodec.encodeCommit(commit);
         String commitHash = sha1(commitBytes);
-        File commitFile = join(OBJECTS_DIR, commitHash);
-        writeObject(commitFile, commit);
+        //先确保message索引完整（不存在时重建），再写入新commit并追加索引
+        MessageIndex messageIndex = getMessageIndex();
+        if (!OBJECT_STORE.contains(commitHash)) {
+            OBJECT_STORE.write(commitHash, ObjectStore.TYPE_COMMIT, commitBytes);
+            messageIndex.add(commitHash, commit.getMessage());
+        }
+        for (String parent : commit.getParents()) {
+            ensureInGraph(parent);
+        }
+        getCommitGraph().add(commitHash, commit.getParents(), commit.getTimeStamp().getTime());
+        COMMIT_CACHE.put(commitHash, commit);
+        return commitHash;
+    }
+
+    //以第一个父commit PARENT为基础，应用暂存区STAGINGAREA中待添加、待删除的文件，生成新commit
+    //父commit有tree时直接在它的根tree上Tree.update，只重写改动路径上的目录，不展开父commit的文件列表；
+    //父commit是没有tree的旧commit时复制它的文件列表再修改，由saveCommit生成tree
+    private static Commit commitFromStaging(String message, List<String> parents, Commit parent,
+                                            StagingArea stagingArea) {
+        Map<String, String> changes = new HashMap<>(stagingArea.getFieldToAdd());
+        for (String fileName : stagingArea.getFieldToRemove().keySet()) {
+            changes.put(fileName, null);
+        }
+        if (parent.getTree() != null) {
+            String tree = Tree.update(OBJECT_STORE, parent.getTree(), changes);
+            return new Commit(message, parents, Tree.files(OBJECT_STORE, tree), new Date(), tree);
+        }
+        Map<String, String> trackedFiles = new HashMap<>(parent.getTrackedFiles());
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                trackedFiles.remove(change.getKey());
+            } else {
+                trackedFiles.put(change.getKey(), change.getValue());
+            }
+        }
+        return new Commit(message, parents, trackedFiles, new Date());
+    }
+
+    //为新commit生成根tree：以第一个父commit的tree为基础，只重写跟踪文件有变化的目录
+    //父commit是没有tree的旧commit时从头生成
+    private static Commit withTree(Commit commit) {
+        Commit parent = commit.getParents().isEmpty() ? null : readCommit(commit.getParents().get(0));
+        String baseTree = parent == null ? null : parent.getTree();
+        Map<String, String> baseFiles = baseTree == null ? new HashMap<>() : parent.getTrackedFiles();
+        Map<String, String> changes = new HashMap<>();
+        for (Map.Entry<String, String> entry : commit.getTrackedFiles().entrySet()) {
+            if (!entry.getValue().equals(baseFiles.get(entry.getKey()))) {
+                changes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String fileName : baseFiles.keySet()) {
+            if (!commit.getTrackedFiles().containsKey(fileName)) {
+                changes.put(fileName, null);
+            }
+        }
+        String tree = Tree.update(OBJECT_STORE, baseTree, changes);
+        return new Commit(commit.getMessage(), commit.getParents(), commit.getTrackedFiles(),
+                          commit.getTimeStamp(), tree);
+    }
+
+    //两个commit之间内容不同的文件：文件名 -> {A中的hash, B中的hash}（没有为null）
+    //两个commit都有tree时只比较hash不同的子树，不必展开所有文件
+    private static Map<String, String[]> changedFiles(Commit a, Commit b) {
+        if (a.getTree() != null && b.getTree() != null) {
+            return Tree.changes(OBJECT_STORE, a.getTree(), b.getTree());
+        }
+        return changedFiles(a.getTrackedFiles(), b.getTrackedFiles());
+    }
+
+    //两组文件（文件名 -> hash）之间内容不同的文件：文件名 -> {A中的hash, B中的hash}（没有为null）
+    private static Map<String, String[]> changedFiles(Map<String, String> a, Map<String, String> b) {
+        Set<String> fileNames = new HashSet<>(a.keySet());
+        fileNames.addAll(b.keySet());
+        Map<String, String[]> changes = new TreeMap<>();
+        for (String fileName : fileNames) {
+            String hashA = a.get(fileName);
+            String hashB = b.get(fileName);
+            if (!Objects.equals(hashA, hashB)) {
+                changes.put(fileName, new String[] {hashA, hashB});
+            }
+        }
+        return changes;
+    }
+
+    //把工作区从headCommit切换到targetCommit
+    //只写入blob hash不同或新增的文件，两边hash相同且工作区文件没被改过的直接跳过，最后删除只被headCommit跟踪的文件
+    //两个commit都有tree时用Tree.changes比较，跳过hash相同的子树，不逐个比较两边的文件
+    //读blob和写文件由线程池并行完成，线程数由配置checkout.threads决定
+    private static void materializeCommit(Commit targetCommit, Commit headCommit) {
+        //1.两个commit之间不同的文件：新增或修改的写入，只在headCommit中的删除
+        Map<String, String> toWrite = new HashMap<>();
+        List<String> toDelete = new ArrayList<>();
+        Map<String, String[]> changes = changedFiles(headCommit, targetCommit);
+        for (Map.Entry<String, String[]> change : changes.entrySet()) {
+            if (change.getValue()[1] != null) {
+                toWrite.put(change.getKey(), change.getValue()[1]);
+            } else {
+                toDelete.add(change.getKey());
+            }
+        }
+
+        //2.两个commit中内容相同的文件，工作区里被删掉或改过的也要写回；
+        //  用stat缓存取工作区文件的hash，stat信息没变的文件不读内容
+        int skipped = 0;
+        for (Map.Entry<String, String> entry : targetCommit.getTrackedFiles().entrySet()) {
+            String fileName = entry.getKey();
+            if (changes.containsKey(fileName)) {
+                continue;
+            }
+            if (join(CWD, fileName).isFile() && getStatCache().hash(fileName).equals(entry.getValue())) {
+                skipped += 1;
+            } else {
+                toWrite.put(fileName, entry.getValue());
+            }
+        }
+
+        //3.写入和删除
+        int threads = CONFIG.getInt("checkout.threads", Runtime.getRuntime().availableProcessors());
+        ParallelCheckout.run(OBJECT_STORE, CWD, toWrite, toDelete, threads, getStatCache());
+
+        //4.调试模式下报告写入、跳过、删除的文件数
+        if (CONFIG.getBoolean("debug", false)) {
+            System.err.println("checkout: " + toWrite.size() + " written, " + skipped + " skipped, "
+                    + toDelete.size() + " deleted");
+        }
+    }
+
+    //获取stat缓存，第一次调用时从文件加载
+    private static StatCache getStatCache() {
+        if (statCache == null) {
+            statCache = StatCache.load(INDEX_FILE, CWD);
+        }
+        return statCache;
+    }
+
+    //保存stat缓存；只读命令（status、diff）不持有写锁，新算出的hash只留在内存里，不写.gitlet
+    private static void saveStatCache() {
+        if (isLocked()) {
+            getStatCache().save();
+        }
+    }
+
+    //获取commit message索引，索引文件不存在时从所有commit重建一次
+    //重建要写.gitlet，只读命令（find）在这里升级为持有写锁，见lock()
+    private static MessageIndex getMessageIndex() {
+        if (messageIndex == null) {
+            MessageIndex index = MessageIndex.open(MESSAGE_INDEX_FILE, MESSAGE_TOKENS_FILE,
+                                                   CONFIG.getBoolean("core.messageTokens", false));
+            if (!index.exists()) {
+                lock();
+                //等锁期间其他进程可能已经重建过
+                if (!index.exists()) {
+                    Map<String, String> messages = new LinkedHashMap<>();
+                    for (String commitHash : OBJECT_STORE.listIds(ObjectStore.TYPE_COMMIT)) {
+                        messages.put(commitHash, readCommit(commitHash).getMessage());
+                    }
+                    index.rebuild(messages);
+                }
+            }
+            messageIndex = index;
+        }
+        return messageIndex;
+    }
+
+    //获取commit-graph，第一次调用时从文件加载
+    private static CommitGraph getCommitGraph() {
+        if (commitGraph == null) {
+            commitGraph = CommitGraph.load(COMMIT_GRAPH_FILE);
+        }
+        return commitGraph;
+    }
+
+    //确保commitHash及其所有祖先都在commit-graph中（旧仓库没有commit-graph文件时按需补齐）
+    //父节点必须先于子节点加入，所以用栈做后序遍历；
+    //补齐要追加commit-graph文件，只读命令（log）在这里升级为持有写锁，升级时可能丢弃旧缓存，所以之后再取图
+    private static CommitGraph ensureInGraph(String commitHash) {
+        if (!getCommitGraph().contains(commitHash)) {
+            lock();
+        }
+        CommitGraph graph = getCommitGraph();
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(commitHash);
+        while (!stack.isEmpty()) {
+            String id = stack.peek();
+            if (graph.contains(id)) {
+                stack.pop();
+                continue;
+            }
+            Commit commit = readCommit(id);
+            boolean parentsReady = true;
+            for (String parent : commit.getParents()) {
+                if (!graph.contains(parent)) {
+                    stack.push(parent);
+                    parentsReady = false;
+                }
+            }
+            if (parentsReady) {
+                graph.add(id, commit.getParents(), commit.getTimeStamp().getTime());
+                stack.pop();
+            }
+        }
+        return graph;
     }
 
     //更新分支最新commit，并不需要动HEAD，HEAD指向的分支目前还是最新的
     private static void updateCurBranchHead(String newCommitHash) {
         String refPath = readContentsAsString(HEAD_FILE).replace("ref: ", "");
         File branchPath = join(GITLET_DIR, refPath);
-        writeContents(branchPath, newCommitHash);
+        writeContentsAtomic(branchPath, GITLET_DIR, newCommitHash);
     }
 
+    //把（可能缩写的）commit id 补全为完整 id，不存在返回 null，有多个 commit 匹配时报错
     private static String findFullCommitId(String shortId) {
         // 如果传入的已经是完整ID，直接返回
         if (shortId.length() == 40) {
-            File commitFile = join(OBJECTS_DIR, shortId);
-            if (commitFile.exists()) {
+            if (OBJECT_STORE.typeOf(shortId) == ObjectStore.TYPE_COMMIT) {
                 return shortId; // 存在，是有效的，返回它
             } else {
                 return null; // 不存在，是无效的，返回 null
             }
         }
 
-        List<String> allObjectFiles = plainFilenamesIn(OBJECTS_DIR);
-        if (allObjectFiles == null) {
-            return null;
+        // 在有序的对象索引中按前缀查找，只需要知道是否有第二个匹配
+        List<String> matches = OBJECT_STORE.findByPrefix(shortId.toLowerCase(), ObjectStore.TYPE_COMMIT, 2);
+        if (matches.isEmpty()) {
+            return null; // 没找到
         }
-
-        String foundId = null;
-        for (String fileName : allObjectFiles) {
-            if (fileName.startsWith(shortId)) {
-                // 在这个项目中，我们暂时不考虑多个匹配（歧义）的情况，找到第一个即可
-                foundId = fileName;
-                return foundId;
-            }
+        if (matches.size() > 1) {
+            throw new GitletException("Commit id " + shortId + " is ambiguous.");
         }
-        return null; // 遍历完也没找到
+        return matches.get(0);
     }
 }
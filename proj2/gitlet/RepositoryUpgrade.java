@@ -0,0 +1,145 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/** 把旧格式的 .gitlet 目录升级为当前格式（Repository.REPOSITORY_FORMAT）。
+ *  旧格式：objects 下每个对象一个文件、没有类型头，commit 和暂存区用 Java 序列化保存。
+ *
+ *  blob 的 id 只取决于文件内容，补上类型头后原子替换原文件即可；
+ *  commit 的 id 是规范编码的 SHA-1，所以每个 commit 都会得到新 id，
+ *  父节点要先于子节点改写，然后改写所有分支指针和暂存区，最后才删除旧 commit。
+ *
+ *  每一步都是原子的文件替换，并且可以重复执行：旧格式对象的文件名就是整个文件内容的 SHA-1，
+ *  已经升级过的对象（带类型头）不满足这一点，重新执行时直接跳过；
+ *  已经改写过的分支指针不在旧 id 表中，已经改写过的暂存区不是 Java 序列化流，也都跳过。
+ *  中途崩溃后再次执行 upgrade 会从断点继续，FORMAT_FILE 要等全部完成后才写入。
+ *
+ *  @author Lucius
+ */
+class RepositoryUpgrade {
+    /** Java 序列化流的开头两个字节 */
+    private static final int JAVA_STREAM_MAGIC = 0xaced;
+
+    /** 升级当前仓库，新对象写入 STORE */
+    static void run(ObjectStore store) {
+        //1.区分旧 commit 与 blob，blob 补上类型头后原子替换，已经升级过的对象跳过
+        Map<String, Commit> oldCommits = new HashMap<>();
+        List<String> names = plainFilenamesIn(Repository.OBJECTS_DIR);
+        for (String name : names) {
+            if (!isUid(name)) {
+                continue;
+            }
+            File file = join(Repository.OBJECTS_DIR, name);
+            byte[] content = readContents(file);
+            if (!sha1(content).equals(name)) {
+                continue;
+            }
+            Commit commit = readLegacyCommit(content);
+            if (commit != null) {
+                oldCommits.put(name, commit);
+            } else {
+                writeContentsAtomic(file, Repository.OBJECTS_DIR, new byte[] {ObjectStore.TYPE_BLOB}, content);
+            }
+        }
+
+        //2.按父节点优先的顺序改写 commit
+        Map<String, String> newIds = new LinkedHashMap<>();
+        for (String oldId : oldCommits.keySet()) {
+            rewrite(oldId, oldCommits, newIds, store);
+        }
+
+        //3.改写分支指针
+        for (String branch : plainFilenamesIn(Repository.HEADS_DIR)) {
+            File branchFile = join(Repository.HEADS_DIR, branch);
+            String oldId = readContentsAsString(branchFile);
+            if (newIds.containsKey(oldId)) {
+                writeContentsAtomic(branchFile, Repository.GITLET_DIR, newIds.get(oldId));
+            }
+        }
+
+        //4.改写暂存区
+        if (Repository.STAGING_FILE.exists() && isJavaStream(readContents(Repository.STAGING_FILE))) {
+            StagingArea stagingArea = readObject(Repository.STAGING_FILE, StagingArea.class);
+            writeContentsAtomic(Repository.STAGING_FILE, Repository.GITLET_DIR,
+                                BinaryCodec.encodeStagingArea(stagingArea));
+        }
+
+        //5.引用都已切换到新 commit，子节点先于父节点删除旧 commit，中途崩溃时剩下的旧 commit 祖先仍然齐全；
+        //  commit-graph 与 message 索引之后会按需重建
+        List<String> rewritten = new ArrayList<>(newIds.keySet());
+        for (int i = rewritten.size() - 1; i >= 0; i -= 1) {
+            join(Repository.OBJECTS_DIR, rewritten.get(i)).delete();
+        }
+        Repository.COMMIT_GRAPH_FILE.delete();
+        Repository.MESSAGE_INDEX_FILE.delete();
+        Repository.MESSAGE_TOKENS_FILE.delete();
+
+        System.out.println("Upgraded " + oldCommits.size() + " commits.");
+    }
+
+    /** 改写旧 commit ROOTID 及其尚未改写的祖先，结果记入 NEWIDS */
+    private static void rewrite(String rootId, Map<String, Commit> oldCommits,
+                                Map<String, String> newIds, ObjectStore store) {
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(rootId);
+        while (!stack.isEmpty()) {
+            String oldId = stack.peek();
+            if (newIds.containsKey(oldId)) {
+                stack.pop();
+                continue;
+            }
+            Commit old = oldCommits.get(oldId);
+            if (old == null) {
+                throw error("Commit %s is missing; cannot upgrade repository.", oldId);
+            }
+            boolean parentsReady = true;
+            for (String parent : old.getParents()) {
+                if (!newIds.containsKey(parent)) {
+                    stack.push(parent);
+                    parentsReady = false;
+                }
+            }
+            if (!parentsReady) {
+                continue;
+            }
+            List<String> parents = new ArrayList<>();
+            for (String parent : old.getParents()) {
+                parents.add(newIds.get(parent));
+            }
+            Commit upgraded = new Commit(old.getMessage(), parents,
+                                         old.getTrackedFiles(), old.getTimeStamp());
+            byte[] bytes = BinaryCodec.encodeCommit(upgraded);
+            String newId = sha1(bytes);
+            store.write(newId, ObjectStore.TYPE_COMMIT, bytes);
+            newIds.put(oldId, newId);
+            stack.pop();
+        }
+    }
+
+    /** 如果 CONTENT 是 Java 序列化的旧 Commit 则返回它，否则返回 null */
+    private static Commit readLegacyCommit(byte[] content) {
+        if (!isJavaStream(content)) {
+            return null;
+        }
+        try {
+            return deserialize(content, Commit.class);
+        } catch (IllegalArgumentException excp) {
+            return null;
+        }
+    }
+
+    /** 判断 CONTENT 是否以 Java 序列化流的魔数开头 */
+    private static boolean isJavaStream(byte[] content) {
+        return content.length >= 2
+            && ((content[0] & 0xff) << 8 | (content[1] & 0xff)) == JAVA_STREAM_MAGIC;
+    }
+}
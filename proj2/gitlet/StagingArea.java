@@ -5,6 +5,9 @@ import java.util.HashMap;
 import java.util.Map;
 
 public class StagingArea implements Serializable {
+    //固定为最初版本的值，升级旧仓库时仍能用Java反序列化读出旧暂存区
+    private static final long serialVersionUID = -2468222246088355844L;
+
     //存储待添加的文件名及其哈希值
     private Map<String, String> fieldToAdd;
 
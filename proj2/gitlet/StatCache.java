@@ -0,0 +1,205 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.*;
+
+/** 工作区文件的 stat 缓存（.gitlet/index），类似 git 的 index。
+ *  为每个文件记录 大小、修改时间、inode 以及内容的 blob hash；
+ *  stat 信息没变的文件直接用缓存的 hash，不必重新读取文件计算 SHA-1，
+ *  status 因此从读全部内容变成只扫描元数据。
+ *
+ *  文件格式：
+ *      "GSTC" | int 版本号 | int 条目数 | 条目...
+ *      条目为 str 文件名 | long 大小 | long 修改时间（纳秒）| long inode | 20 字节 blob SHA-1
+ *
+ *  racy clean：修改时间不早于 index 文件本身写入时间的条目不可信
+ *  （文件可能在同一时间粒度内又被改过），这样的条目总是重新计算 hash。
+ *
+ *  @author Lucius
+ */
+class StatCache {
+    /** 文件魔数 */
+    private static final int MAGIC = 0x47535443; // "GSTC"
+    /** 格式版本 */
+    private static final int VERSION = 1;
+
+    /** 一个文件的 stat 信息和 hash */
+    private static class Entry {
+        long size;
+        long mtime;
+        long inode;
+        String hash;
+    }
+
+    /** index 文件 */
+    private final File file;
+    /** 工作目录 */
+    private final File workDir;
+    /** 文件名 -> 条目 */
+    private final Map<String, Entry> entries = new HashMap<>();
+    /** 读取时 index 文件的修改时间（纳秒），用于判断 racy clean */
+    private final long indexMtime;
+    /** 是否有改动需要写回 */
+    private boolean dirty;
+
+    private StatCache(File file, File workDir, long indexMtime) {
+        this.file = file;
+        this.workDir = workDir;
+        this.indexMtime = indexMtime;
+    }
+
+    /** 读取 FILE 中的 stat 缓存，WORKDIR 为工作目录；文件不存在或损坏时返回空缓存 */
+    static StatCache load(File file, File workDir) {
+        if (!file.isFile()) {
+            return new StatCache(file, workDir, Long.MIN_VALUE);
+        }
+        StatCache cache = new StatCache(file, workDir, stat(file)[1]);
+        try {
+            ByteBuffer in = ByteBuffer.wrap(readContents(file));
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return new StatCache(file, workDir, Long.MIN_VALUE);
+            }
+            int count = in.getInt();
+            for (int i = 0; i < count; i += 1) {
+                byte[] name = new byte[in.getInt()];
+                in.get(name);
+                Entry entry = new Entry();
+                entry.size = in.getLong();
+                entry.mtime = in.getLong();
+                entry.inode = in.getLong();
+                byte[] raw = new byte[UID_LENGTH / 2];
+                in.get(raw);
+                entry.hash = bytesToUid(raw, 0);
+                cache.entries.put(new String(name, StandardCharsets.UTF_8), entry);
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException excp) {
+            return new StatCache(file, workDir, Long.MIN_VALUE);
+        }
+        return cache;
+    }
+
+    /** 返回工作区文件 FILENAME 的 blob hash。
+     *  stat 信息与缓存一致时直接返回缓存的 hash，否则重新计算并更新缓存。 */
+    String hash(String fileName) {
+        String cached = cachedHash(fileName);
+        if (cached != null) {
+            return cached;
+        }
+        File workFile = join(workDir, fileName);
+        long[] before = stat(workFile);
+        String hash = sha1OfFile(workFile);
+        put(fileName, before, hash);
+        return hash;
+    }
+
+    /** 若文件 FILENAME 的 stat 信息与缓存一致，返回缓存的 hash，否则返回 null */
+    String cachedHash(String fileName) {
+        Entry entry = entries.get(fileName);
+        if (entry == null || entry.mtime >= indexMtime) {
+            return null;
+        }
+        File workFile = join(workDir, fileName);
+        if (!workFile.isFile()) {
+            return null;
+        }
+        long[] now = stat(workFile);
+        if (now[0] != entry.size || now[1] != entry.mtime || now[2] != entry.inode) {
+            return null;
+        }
+        return entry.hash;
+    }
+
+    /** 记录工作区文件 FILENAME 当前的内容 hash 为 HASH（例如刚从 blob 写出之后） */
+    void update(String fileName, String hash) {
+        put(fileName, stat(join(workDir, fileName)), hash);
+    }
+
+    /** 从缓存中移除 FILENAME */
+    void remove(String fileName) {
+        if (entries.remove(fileName) != null) {
+            dirty = true;
+        }
+    }
+
+    /** 有改动时写回 index 文件 */
+    void save() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                byte[] name = e.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeLong(e.getValue().size);
+                out.writeLong(e.getValue().mtime);
+                out.writeLong(e.getValue().inode);
+                out.write(uidToBytes(e.getValue().hash));
+            }
+            out.close();
+            writeContentsAtomic(file, file.getParentFile(), bytes.toByteArray());
+            dirty = false;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** 放入一条记录 */
+    private void put(String fileName, long[] stat, String hash) {
+        Entry entry = new Entry();
+        entry.size = stat[0];
+        entry.mtime = stat[1];
+        entry.inode = stat[2];
+        entry.hash = hash;
+        entries.put(fileName, entry);
+        dirty = true;
+    }
+
+    /** 返回 FILE 的 {大小, 修改时间（纳秒）, inode}；不支持 unix 属性的系统上用 fileKey 代替 inode */
+    private static long[] stat(File file) {
+        Path path = file.toPath();
+        try {
+            try {
+                Map<String, Object> attrs = Files.readAttributes(path,
+                        "unix:size,lastModifiedTime,ino", LinkOption.NOFOLLOW_LINKS);
+                return new long[] {
+                    (Long) attrs.get("size"),
+                    ((FileTime) attrs.get("lastModifiedTime"))
+                        .to(TimeUnit.NANOSECONDS),
+                    (Long) attrs.get("ino")
+                };
+            } catch (UnsupportedOperationException | IllegalArgumentException excp) {
+                BasicFileAttributes attrs = Files.readAttributes(path,
+                        BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                Object key = attrs.fileKey();
+                return new long[] {
+                    attrs.size(),
+                    attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                    key == null ? 0 : key.hashCode()
+                };
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package gitlet;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static gitlet.Utils.*;
+
+/** tree 对象：一个目录里的文件（-> blob）和子目录（-> 子 tree），commit 通过根 tree 引用它跟踪的文件。
+ *
+ *  没有改动的子目录在新旧 commit 之间共享同一个 tree 对象：
+ *      update 只重写改动路径上的目录，其余目录项原样沿用旧的 hash，
+ *      commit 对象本身只有根 tree 的 20 字节，不再随文件数增长；
+ *      changes 比较两个 tree 时跳过 hash 相同的子树，代价与改动的路径数成正比。
+ *  目录项用 名字 -> SHA-1 表示，子目录的名字以 / 结尾（编码见 BinaryCodec）。
+ *  空目录不保存，只有根 tree 可以为空。
+ *
+ *  @author Lucius
+ */
+class Tree {
+    private Tree() {
+    }
+
+    /** 在根 tree BASE（null 表示空）上应用 CHANGES（路径 -> blob hash，null 表示删除），
+     *  把新的 tree 对象写入 STORE，返回新的根 tree hash */
+    static String update(ObjectStore store, String base, Map<String, String> changes) {
+        String root = updateDir(store, base, changes);
+        return root != null ? root : writeTree(store, new TreeMap<>());
+    }
+
+    /** 根 tree TREE 展开后的 文件路径 -> blob hash。
+     *  返回的映射只读，第一次访问时才读取 tree 对象，只看 message 的命令（log 等）不必展开 */
+    static Map<String, String> files(ObjectStore store, String tree) {
+        return new LazyFiles(store, tree);
+    }
+
+    /** 根 tree A 与 B 中内容不同的文件：路径 -> {A 中的 blob hash, B 中的 blob hash}（没有为 null），
+     *  hash 相同的子树直接跳过 */
+    static Map<String, String[]> changes(ObjectStore store, String a, String b) {
+        Map<String, String[]> result = new TreeMap<>();
+        diffDir(store, a, b, "", result);
+        return result;
+    }
+
+    /** 把 TREE 和它的所有子 tree 的 hash 交给 VISITOR；VISITOR 返回 false 时不再进入该 tree 的子目录，
+     *  返回 true 时还会把该 tree 里文件的 blob hash 交给 BLOBS */
+    static void walk(ObjectStore store, String tree, Predicate<String> visitor, Consumer<String> blobs) {
+        if (!visitor.test(tree)) {
+            return;
+        }
+        for (Map.Entry<String, String> entry : read(store, tree).entrySet()) {
+            if (entry.getKey().endsWith("/")) {
+                walk(store, entry.getValue(), visitor, blobs);
+            } else {
+                blobs.accept(entry.getValue());
+            }
+        }
+    }
+
+    /** 读取 tree 对象 TREE 的目录项 */
+    private static TreeMap<String, String> read(ObjectStore store, String tree) {
+        return BinaryCodec.decodeTree(store.read(tree, ObjectStore.TYPE_TREE));
+    }
+
+    /** 写入目录项为 ENTRIES 的 tree 对象，返回其 hash */
+    private static String writeTree(ObjectStore store, TreeMap<String, String> entries) {
+        byte[] bytes = BinaryCodec.encodeTree(entries);
+        String id = sha1(bytes);
+        store.write(id, ObjectStore.TYPE_TREE, bytes);
+        return id;
+    }
+
+    /** 在目录 tree BASE 上应用 CHANGES（路径相对这个目录），返回新 tree 的 hash，目录变空时返回 null */
+    private static String updateDir(ObjectStore store, String base, Map<String, String> changes) {
+        TreeMap<String, String> entries = base == null ? new TreeMap<>() : read(store, base);
+
+        //1.本目录下的文件直接修改，子目录的改动按第一级目录分组
+        Map<String, Map<String, String>> subChanges = new HashMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                if (change.getValue() == null) {
+                    entries.remove(path);
+                } else {
+                    entries.put(path, change.getValue());
+                }
+            } else {
+                subChanges.computeIfAbsent(path.substring(0, slash + 1), k -> new HashMap<>())
+                          .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+
+        //2.只重写有改动的子目录，其余子目录沿用原来的 tree
+        for (Map.Entry<String, Map<String, String>> sub : subChanges.entrySet()) {
+            String dir = sub.getKey();
+            String child = updateDir(store, entries.get(dir), sub.getValue());
+            if (child == null) {
+                entries.remove(dir);
+            } else {
+                entries.put(dir, child);
+            }
+        }
+
+        if (entries.isEmpty()) {
+            return null;
+        }
+        return writeTree(store, entries);
+    }
+
+    /** 比较目录 tree A 与 B（null 表示不存在），把不同的文件（路径加上前缀 PREFIX）放进 RESULT */
+    private static void diffDir(ObjectStore store, String a, String b, String prefix,
+                                Map<String, String[]> result) {
+        if (a != null && a.equals(b)) {
+            return;
+        }
+        TreeMap<String, String> left = a == null ? new TreeMap<>() : read(store, a);
+        TreeMap<String, String> right = b == null ? new TreeMap<>() : read(store, b);
+        Set<String> names = new HashSet<>(left.keySet());
+        names.addAll(right.keySet());
+        for (String name : names) {
+            String l = left.get(name);
+            String r = right.get(name);
+            if (l != null && l.equals(r)) {
+                continue;
+            }
+            if (name.endsWith("/")) {
+                diffDir(store, l, r, prefix + name, result);
+            } else {
+                result.put(prefix + name, new String[] {l, r});
+            }
+        }
+    }
+
+    /** 把目录 tree TREE 中的所有文件（路径加上前缀 PREFIX）放进 FILES */
+    private static void flatten(ObjectStore store, String tree, String prefix, Map<String, String> files) {
+        for (Map.Entry<String, String> entry : read(store, tree).entrySet()) {
+            String name = entry.getKey();
+            if (name.endsWith("/")) {
+                flatten(store, entry.getValue(), prefix + name, files);
+            } else {
+                files.put(prefix + name, entry.getValue());
+            }
+        }
+    }
+
+    /** 按需展开的只读文件映射 */
+    private static class LazyFiles extends AbstractMap<String, String> {
+        /** 对象库 */
+        private final ObjectStore store;
+        /** 根 tree */
+        private final String tree;
+        /** 展开后的文件，第一次访问前为 null */
+        private Map<String, String> files;
+
+        LazyFiles(ObjectStore store, String tree) {
+            this.store = store;
+            this.tree = tree;
+        }
+
+        /** 展开后的文件 */
+        private Map<String, String> files() {
+            if (files == null) {
+                Map<String, String> result = new HashMap<>();
+                flatten(store, tree, "", result);
+                files = Collections.unmodifiableMap(result);
+            }
+            return files;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return files().entrySet();
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return files().keySet();
+        }
+
+        @Override
+        public Collection<String> values() {
+            return files().values();
+        }
+
+        @Override
+        public String get(Object key) {
+            return files().get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return files().containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return files().size();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/** 把一个文件两个版本的差异写成 unified diff 格式（diff 命令的输出）：
+ *
+ *      diff --git a/<文件名> b/<文件名>
+ *      --- a/<文件名>        （文件不存在时为 /dev/null）
+ *      +++ b/<文件名>
+ *      @@ -旧起始行,行数 +新起始行,行数 @@
+ *       未改动的上下文行
+ *      -删除的行
+ *      +新增的行
+ *
+ *  每个改动前后保留 CONTEXT 行上下文，距离不超过两倍上下文的改动合并到同一个 hunk。
+ *  含 NUL 字节的文件视为二进制文件，只报告“不同”。
+ *
+ *  @author Lucius
+ */
+class UnifiedDiff {
+    /** 上下文行数 */
+    private static final int CONTEXT = 3;
+
+    private UnifiedDiff() {
+    }
+
+    /** 把文件 NAME 从 OLDCONTENT 到 NEWCONTENT 的差异写入 OUT，null 表示文件不存在 */
+    static void write(ByteArrayOutputStream out, String name, byte[] oldContent, byte[] newContent) {
+        print(out, "diff --git a/" + name + " b/" + name + "\n");
+        if (oldContent == null) {
+            print(out, "new file\n");
+        } else if (newContent == null) {
+            print(out, "deleted file\n");
+        }
+        byte[] oldBytes = oldContent == null ? new byte[0] : oldContent;
+        byte[] newBytes = newContent == null ? new byte[0] : newContent;
+        if (isBinary(oldBytes) || isBinary(newBytes)) {
+            print(out, "Binary files " + (oldContent == null ? "/dev/null" : "a/" + name) + " and "
+                       + (newContent == null ? "/dev/null" : "b/" + name) + " differ\n");
+            return;
+        }
+        print(out, "--- " + (oldContent == null ? "/dev/null" : "a/" + name) + "\n");
+        print(out, "+++ " + (newContent == null ? "/dev/null" : "b/" + name) + "\n");
+
+        //1.按行编号比较，得到编辑脚本
+        List<String> oldLines = MyersDiff.splitLines(oldBytes);
+        List<String> newLines = MyersDiff.splitLines(newBytes);
+        int[][] ids = MyersDiff.toIds(List.of(oldLines, newLines));
+        int[] matches = PatienceDiff.match(ids[0], ids[1]);
+        List<int[]> script = editScript(matches, oldLines.size(), newLines.size());
+
+        //2.相邻的改动合并成 hunk 输出
+        int k = 0;
+        while (k < script.size()) {
+            if (script.get(k)[0] == '=') {
+                k += 1;
+                continue;
+            }
+            int start = Math.max(0, k - CONTEXT);
+            int end = k;
+            int equalRun = 0;
+            while (end < script.size() && equalRun <= 2 * CONTEXT) {
+                equalRun = script.get(end)[0] == '=' ? equalRun + 1 : 0;
+                end += 1;
+            }
+            //去掉多余的尾部上下文
+            end -= Math.max(0, equalRun - CONTEXT);
+            writeHunk(out, script, start, end, oldLines, newLines);
+            k = end;
+        }
+    }
+
+    /** 由匹配 MATCHES 得到编辑脚本，每步为 {操作（'=' '-' '+'）, 旧行下标, 新行下标} */
+    private static List<int[]> editScript(int[] matches, int oldSize, int newSize) {
+        List<int[]> script = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < oldSize || j < newSize) {
+            if (i < oldSize && matches[i] == MyersDiff.NONE) {
+                script.add(new int[] {'-', i, j});
+                i += 1;
+            } else if (j < newSize && (i >= oldSize || j < matches[i])) {
+                script.add(new int[] {'+', i, j});
+                j += 1;
+            } else {
+                script.add(new int[] {'=', i, j});
+                i += 1;
+                j += 1;
+            }
+        }
+        return script;
+    }
+
+    /** 输出 SCRIPT[START, END) 组成的一个 hunk */
+    private static void writeHunk(ByteArrayOutputStream out, List<int[]> script, int start, int end,
+                                  List<String> oldLines, List<String> newLines) {
+        int oldCount = 0;
+        int newCount = 0;
+        for (int k = start; k < end; k += 1) {
+            int op = script.get(k)[0];
+            oldCount += op != '+' ? 1 : 0;
+            newCount += op != '-' ? 1 : 0;
+        }
+        int oldStart = script.get(start)[1] + (oldCount > 0 ? 1 : 0);
+        int newStart = script.get(start)[2] + (newCount > 0 ? 1 : 0);
+        print(out, "@@ -" + range(oldStart, oldCount) + " +" + range(newStart, newCount) + " @@\n");
+        for (int k = start; k < end; k += 1) {
+            int[] step = script.get(k);
+            String line = step[0] == '+' ? newLines.get(step[2]) : oldLines.get(step[1]);
+            print(out, step[0] == '=' ? " " : String.valueOf((char) step[0]));
+            out.writeBytes(line.getBytes(StandardCharsets.ISO_8859_1));
+            if (!line.endsWith("\n")) {
+                print(out, "\n\\ No newline at end of file\n");
+            }
+        }
+    }
+
+    /** hunk 头中的行范围，只有一行时省略行数 */
+    private static String range(int start, int count) {
+        return count == 1 ? Integer.toString(start) : start + "," + count;
+    }
+
+    /** 含 NUL 字节的内容视为二进制 */
+    private static boolean isBinary(byte[] content) {
+        for (byte b : content) {
+            if (b == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** 输出文本（UTF-8，文件名可能不是 ASCII） */
+    private static void print(ByteArrayOutputStream out, String text) {
+        out.writeBytes(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -1,16 +1,21 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -63,14 +68,76 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** Returns the SHA-1 hash of the contents of FILE, reading it as a
+     *  stream so that memory use does not depend on the size of FILE.
+     *  Throws IllegalArgumentException in case of problems. */
+    static String sha1OfFile(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                md.update(buffer, 0, n);
+            }
+            return bytesToUid(md.digest(), 0);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** Size of the buffers used when streaming file contents. */
+    static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+    /** Returns the UID_LENGTH / 2 raw bytes denoted by the hexadecimal
+     *  SHA-1 UID ID. */
+    static byte[] uidToBytes(String id) {
+        byte[] result = new byte[UID_LENGTH / 2];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = (byte) Integer.parseInt(id.substring(2 * i, 2 * i + 2),
+                                                16);
+        }
+        return result;
+    }
+
+    /** Returns the hexadecimal SHA-1 UID stored as raw bytes in BYTES,
+     *  starting at OFFSET. */
+    static String bytesToUid(byte[] bytes, int offset) {
+        StringBuilder result = new StringBuilder(UID_LENGTH);
+        for (int i = 0; i < UID_LENGTH / 2; i += 1) {
+            result.append(Character.forDigit((bytes[offset + i] >> 4) & 0xf, 16));
+            result.append(Character.forDigit(bytes[offset + i] & 0xf, 16));
+        }
+        return result.toString();
+    }
+
+    /** Returns true iff NAME has the form of a complete SHA-1 UID. */
+    static boolean isUid(String name) {
+        if (name.length() != UID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < UID_LENGTH; i += 1) {
+            if (Character.digit(name.charAt(i), 16) < 0
+                || Character.isUpperCase(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
      *  if FILE was deleted, and false otherwise.  Refuses to delete FILE
      *  and throws IllegalArgumentException unless the directory designated by
-     *  FILE also contains a directory named .gitlet. */
+     *  FILE, or one of its ancestors (for files in subdirectories), also
+     *  contains a directory named .gitlet. */
     static boolean restrictedDelete(File file) {
-        if (!(new File(file.getParentFile(), ".gitlet")).isDirectory()) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        while (dir != null && !(new File(dir, ".gitlet")).isDirectory()) {
+            dir = dir.getParentFile();
+        }
+        if (dir == null) {
             throw new IllegalArgumentException("not .gitlet working directory");
         }
         if (!file.isDirectory()) {
@@ -136,6 +203,58 @@ class Utils {
         }
     }
 
+    /** Like writeContents, but first writes CONTENTS to a temporary file
+     *  (named tmp-*) in TMPDIR, forces it to disk and then atomically renames
+     *  it to FILE.  Readers therefore see either the old or the new contents,
+     *  and a crash never leaves FILE half-written.  TMPDIR must be on the same
+     *  file system as FILE.  Throws IllegalArgumentException in case of
+     *  problems. */
+    static void writeContentsAtomic(File file, File tmpDir, Object... contents) {
+        File tmp = null;
+        try {
+            if (file.isDirectory()) {
+                throw
+                    new IllegalArgumentException("cannot overwrite directory");
+            }
+            tmp = File.createTempFile("tmp-", null, tmpDir);
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                BufferedOutputStream str = new BufferedOutputStream(out);
+                for (Object obj : contents) {
+                    if (obj instanceof byte[]) {
+                        str.write((byte[]) obj);
+                    } else {
+                        str.write(((String) obj).getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                str.flush();
+                out.getChannel().force(true);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+        } catch (IOException | ClassCastException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /** Prepares CHANNEL, an append-only file made of a HEADER-byte header
+     *  followed by RECORD-byte records, for appending: cuts off a partial
+     *  header or a partial trailing record left behind by a crash in the
+     *  middle of an append.  Returns true iff the file is now empty, so the
+     *  caller must write the header first. */
+    static boolean truncateTorn(FileChannel channel, int header, int record)
+        throws IOException {
+        long size = channel.size();
+        long keep = size < header ? 0 : size - (size - header) % record;
+        if (keep < size) {
+            channel.truncate(keep);
+        }
+        return keep == 0;
+    }
+
     /** Return an object of type T read from FILE, casting it to EXPECTEDCLASS.
      *  Throws IllegalArgumentException in case of problems. */
     static <T extends Serializable> T readObject(File file,
@@ -152,6 +271,22 @@ class Utils {
         }
     }
 
+    /** Return an object of type T deserialized from BYTES, casting it to
+     *  EXPECTEDCLASS.  Throws IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+                                                  Class<T> expectedClass) {
+        try {
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     /** Write OBJ to FILE. */
     static void writeObject(File file, Serializable obj) {
         writeContents(file, serialize(obj));
@@ -0,0 +1,146 @@
+import sys, os, socket, stat, time
+from subprocess import Popen, check_output, DEVNULL, STDOUT
+from getopt import getopt, GetoptError
+from tempfile import mkdtemp
+from shutil import rmtree
+from os.path import join, exists
+
+USAGE = """\
+Usage: python3 daemon-tester.py [--progdir=DIR] [--keep]
+
+Checks the gitlet daemon protocol: the daemon only answers connections
+that send the token from .gitlet/daemon.token, sees changes made by
+other gitlet processes, and removes its port and token files on
+shutdown.
+"""
+
+JAVA_COMMAND = "java"
+GITLET_CLASS = "gitlet.Main"
+TIMEOUT = 10
+
+
+class Client:
+    """A connection to the daemon. Sends TOKEN first."""
+
+    def __init__(self, port, token):
+        self.sock = socket.create_connection(("127.0.0.1", port), TIMEOUT)
+        self.file = self.sock.makefile("rwb")
+        self.file.write((token + "\n").encode())
+        self.file.flush()
+
+    def run(self, *args):
+        """Run gitlet ARGS in the daemon and return its output, or None
+        if the daemon closed the connection."""
+        line = "\t".join(a.replace("\\", "\\\\").replace("\t", "\\t")
+                         .replace("\n", "\\n") for a in args)
+        self.file.write((line + "\n").encode())
+        self.file.flush()
+        length = self.file.readline()
+        if not length:
+            return None
+        return self.file.read(int(length)).decode()
+
+    def close(self):
+        self.file.close()
+        self.sock.close()
+
+
+def gitlet(dir, *args):
+    return check_output([JAVA_COMMAND, GITLET_CLASS] + list(args), cwd=dir,
+                        stdin=DEVNULL, stderr=STDOUT,
+                        universal_newlines=True, timeout=TIMEOUT)
+
+
+def check(condition, message):
+    if not condition:
+        raise AssertionError(message)
+
+
+def wait_for(path):
+    deadline = time.time() + TIMEOUT
+    while not exists(path):
+        check(time.time() < deadline, "{} was not created".format(path))
+        time.sleep(0.05)
+
+
+def doTest(dir):
+    gitlet(dir, "init")
+    port_file = join(dir, ".gitlet", "daemon.port")
+    token_file = join(dir, ".gitlet", "daemon.token")
+    daemon = Popen([JAVA_COMMAND, GITLET_CLASS, "daemon"], cwd=dir,
+                   stdin=DEVNULL, stdout=DEVNULL, stderr=DEVNULL)
+    try:
+        #1. The port file is written after the token file.
+        wait_for(port_file)
+        time.sleep(0.05)
+        port = int(open(port_file).read())
+        token = open(token_file).read()
+        check(stat.S_IMODE(os.stat(token_file).st_mode) == 0o600,
+              "token file is readable by other users")
+
+        #2. A wrong token gets the connection closed before any command runs.
+        bad = Client(port, "0" * len(token))
+        check(bad.run("branch", "intruder") is None,
+              "daemon answered a connection with a wrong token")
+        bad.close()
+        check(not exists(join(dir, ".gitlet", "refs", "heads", "intruder")),
+              "daemon ran a command from a connection with a wrong token")
+
+        #3. Commands run in the daemon behave like single runs.
+        client = Client(port, token)
+        with open(join(dir, "f.txt"), "w") as f:
+            f.write("one\n")
+        check(client.run("add", "f.txt") == "", "add printed output")
+        check(client.run("commit", "one") == "", "commit printed output")
+        check(client.run("commit", "again") == "No changes add to the commit\n",
+              "commit without changes was not rejected")
+        check(client.run("daemon") == "A daemon is already running.\n",
+              "nested daemon was not rejected")
+
+        #4. Changes made by another process are visible to the daemon.
+        gitlet(dir, "branch", "outside")
+        status = client.run("status")
+        check(status is not None and "\noutside\n" in status,
+              "daemon did not see a branch created by another process")
+        gitlet(dir, "rm", "f.txt")
+        check("=== Removed Files ===\nf.txt\n" in client.run("status"),
+              "daemon did not see a file removed by another process")
+        client.run("commit", "two")
+        check(gitlet(dir, "log").count("===") == 3,
+              "a commit made in the daemon is missing from log")
+
+        #5. shutdown stops the daemon and removes its files.
+        check(client.run("shutdown") == "", "shutdown printed output")
+        client.close()
+        daemon.wait(TIMEOUT)
+        check(not exists(port_file) and not exists(token_file),
+              "daemon left its port or token file behind")
+    finally:
+        if daemon.poll() is None:
+            daemon.kill()
+
+
+if __name__ == "__main__":
+    keep = False
+    try:
+        opts, args = getopt(sys.argv[1:], '', ['progdir=', 'keep'])
+    except GetoptError:
+        print(USAGE)
+        sys.exit(1)
+    for opt, val in opts:
+        if opt == "--progdir":
+            os.environ['CLASSPATH'] = os.pathsep.join(
+                filter(None, [val, os.environ.get('CLASSPATH')]))
+        elif opt == "--keep":
+            keep = True
+
+    dir = mkdtemp(prefix="daemon-test-", dir=os.getcwd())
+    try:
+        doTest(dir)
+        print("daemon:\nOK")
+    except Exception as excp:
+        print("daemon:\nERROR ({})".format(excp))
+        sys.exit(1)
+    finally:
+        if not keep:
+            rmtree(dir, ignore_errors=True)